@@ -3,7 +3,9 @@ package gitlet;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static gitlet.Utils.*;
@@ -41,22 +43,22 @@ public class Blob implements Serializable {
 
     /**
      * The files stored in the addition.
-     * Id to name.
+     * Id to name. Changed only through Main.serialized, which keeps the name to id
+     * index of the addition in step. Read from it on each use rather than kept,
+     * since a daemon loads a new Main.serialized for each command.
      */
-    private static final HashMap<String, String> ADDFILES = Main.serialized.getAddFiles();
+    public static HashMap<String, String> getAddFiles() {
+        return Main.serialized.getAddFiles();
+    }
 
     /**
      * The files stored in the removal.
      * Id to name.
      */
-    private static final HashMap<String, String> RMFILES = Main.serialized.getRmFiles();
-
-    public static HashMap<String, String> getAddFiles() {
-        return ADDFILES;
-    }
     public static HashMap<String, String> getRmFiles() {
-        return RMFILES;
+        return Main.serialized.getRmFiles();
     }
+
     public Blob(String fileName) {
         this.fileName = fileName;
         filePath = join(CWD, fileName);
@@ -65,10 +67,11 @@ public class Blob implements Serializable {
 
     /**
      * Generate id based on the file name and contents.
+     * The file is hashed a chunk at a time, so its size does not matter, and not at
+     * all if the stat cache knows it is unchanged.
      */
     private String generateId() {
-        String contents = readContentsAsString(filePath);
-        return sha1(contents, fileName);
+        return StatCache.local().id(fileName);
     }
 
     public String getId() {
@@ -82,20 +85,66 @@ public class Blob implements Serializable {
      */
     public void toAdd() {
         File saveFile = join(ADD_DIR, id);
-        if (!saveFile.exists()) {
+        if (!existsInAdd(id)) {
             rmTarName(fileName);
-            writeContents(saveFile, readContentsAsString(filePath));
-            ADDFILES.put(id, fileName);
+            // A file left by a command that did not finish may be incomplete.
+            saveFile.delete();
+            copy(filePath, saveFile);
+            Journal.local().wrote(saveFile);
+            Main.serialized.putAdd(id, fileName);
         }
     }
 
-    private static void rmTarName(String fileName) {
-        for (Map.Entry<String, String> entry : ADDFILES.entrySet()) {
-            if (entry.getKey().equals(fileName)) {
-                join(ADD_DIR, entry.getKey()).delete();
-                ADDFILES.remove(entry.getKey());
+    /**
+     * Stages many files at once, given as file name to blob id. As for single files,
+     * a file identical to its version in headCommit is unstaged instead. The files
+     * are copied into the addition in parallel, on up to threads threads.
+     */
+    public static void addAll(Map<String, String> nameToId, Commit headCommit, int threads) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, String> entry : nameToId.entrySet()) {
+            String id = entry.getValue();
+            if (existsInAdd(id)) {
+                continue;
+            }
+            rmTarName(entry.getKey());
+            if (!headCommit.hasBlob(id)) {
+                names.add(entry.getKey());
             }
         }
+        parallelFor(names.size(), threads, i -> {
+            String name = names.get(i);
+            File saveFile = join(ADD_DIR, nameToId.get(name));
+            saveFile.delete();
+            copy(join(CWD, name), saveFile);
+        });
+        for (String name : names) {
+            Journal.local().wrote(join(ADD_DIR, nameToId.get(name)));
+            Main.serialized.putAdd(nameToId.get(name), name);
+        }
+    }
+
+    /**
+     * Removes the version of the file with the name that is already in the addition.
+     */
+    private static void rmTarName(String fileName) {
+        String staged = nameToIdInAddition(fileName);
+        if (staged != null) {
+            removeFromAdd(staged);
+        }
+    }
+
+    /**
+     * Stages the stored blob with the id as the file with the name, without reading
+     * the working file again.
+     */
+    public static void stageStored(String id, String fileName) {
+        rmTarName(fileName);
+        File saveFile = join(ADD_DIR, id);
+        saveFile.delete();
+        ObjectStore.local().linkTo(ObjectStore.BLOB, id, saveFile);
+        Journal.local().wrote(saveFile);
+        Main.serialized.putAdd(id, fileName);
     }
 
     /**
@@ -103,16 +152,17 @@ public class Blob implements Serializable {
      */
     public static void toRm(String id, String fileName) {
         File rmPath = join(RM_DIR, id);
-        File filePath = join(BLOBS_DIR, id);
-        copy(filePath, rmPath);
-        RMFILES.put(id, fileName);
+        rmPath.delete();
+        ObjectStore.local().linkTo(ObjectStore.BLOB, id, rmPath);
+        Journal.local().wrote(rmPath);
+        getRmFiles().put(id, fileName);
     }
 
     /**
      * returns if the blob has already existed in the addition
      */
     public static boolean existsInAdd(String id) {
-        return join(ADD_DIR, id).exists();
+        return getAddFiles().containsKey(id);
     }
 
     /**
@@ -120,24 +170,20 @@ public class Blob implements Serializable {
      */
     public static void removeFromAdd(String id) {
         if (existsInAdd(id)) {
-            File addPath = join(ADD_DIR, id);
-            addPath.delete();
-            ADDFILES.remove(id);
+            Journal.local().delete(join(ADD_DIR, id));
+            Main.serialized.removeAdd(id);
         }
     }
 
-    public static boolean existsInCurCommit(String id) {
-        Commit currentCommit = Commit.getHeadCommit();
-        return currentCommit.hasBlob(id);
+    /**
+     * Empties the addition, leaving its files in place.
+     */
+    public static void clearAddFiles() {
+        Main.serialized.clearAdd();
     }
 
     public static String nameToIdInAddition(String fileName) {
-        for (Map.Entry<String, String> entryTracked : ADDFILES.entrySet()) {
-            if (entryTracked.getValue().equals(fileName)) {
-                return entryTracked.getKey();
-            }
-        }
-        return null;
+        return Main.serialized.addIdOf(fileName);
     }
 
 }
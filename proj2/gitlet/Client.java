@@ -0,0 +1,77 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A thin front end for the Daemon: java gitlet.Client ARGS runs the command ARGS
+ * in the daemon serving the current directory and prints its output, or runs it
+ * here as java gitlet.Main ARGS would if no daemon is running.
+ */
+public class Client {
+
+    public static void main(String[] args) {
+        if (running()) {
+            forward(args);
+        } else {
+            Main.main(args);
+        }
+    }
+
+    /**
+     * Returns if a daemon is listening on the socket of the current directory.
+     */
+    public static boolean running() {
+        if (!Daemon.SOCKET.exists()) {
+            return false;
+        }
+        try (SocketChannel channel = connect()) {
+            return channel.isConnected();
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends args to the daemon and copies what it prints to System.out.
+     */
+    public static void forward(String[] args) {
+        try (SocketChannel channel = connect()) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            Daemon.writeString(out, Repository.CWD.getPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                Daemon.writeString(out, arg);
+            }
+            out.flush();
+            InputStream in = Channels.newInputStream(channel);
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                System.out.write(buffer, 0, n);
+                if (System.out.checkError()) {
+                    // Our output was closed; closing the socket tells the daemon.
+                    break;
+                }
+            }
+            System.out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(Daemon.SOCKET.toPath()));
+        } catch (IOException excp) {
+            channel.close();
+            throw excp;
+        }
+        return channel;
+    }
+}
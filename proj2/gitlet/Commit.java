@@ -1,8 +1,12 @@
 package gitlet;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static gitlet.Utils.*;
@@ -16,8 +20,40 @@ import static gitlet.MyUtils.*;
  * 3.a mapping of file names to blob references
  * 4.a parent reference (sha1 id of parent commit)
  * 5.a second parent reference (for merge)
+ * <p>
+ * Commits are stored in a binary format rather than with Java serialization:
+ * "GCMT", version (1 byte), id (20 bytes), a byte whose bits say which parents
+ * follow, the parents (20 bytes each), time in milliseconds (8 bytes), the message
+ * (length and UTF-8 bytes), then the id of its Tree (20 bytes). Version 3 adds,
+ * before the Tree, the date as it was formatted into the id (length and UTF-8
+ * bytes), which depends on the time zone it was made in. Commits of version 1
+ * list their files instead: the number of files and for each its blob id (20 bytes)
+ * and name (length and UTF-8 bytes). The files are read on first use, so walking
+ * history does not pay for them. Commits written by older versions, which start
+ * with the Java serialization header, are still read; repack rewrites them.
  */
-public class Commit implements Serializable {
+public class Commit implements Dumpable {
+
+    /**
+     * Pinned to the id the original class was given, so that existing repositories
+     * stay readable as this class changes.
+     */
+    private static final long serialVersionUID = -5694260049392601884L;
+
+    private static final int MAGIC = 0x47434d54;
+    private static final byte VERSION_FILES = 1;
+    private static final byte VERSION_TREE = 2;
+    private static final byte VERSION_DATED = 3;
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_SECOND_PARENT = 2;
+
+    /**
+     * Estimates, in bytes, of the memory a commit takes without its files, and that
+     * each of its files adds to idToName and to nameToId.
+     */
+    private static final int BASE_WEIGHT = 200;
+    private static final int FILE_WEIGHT = 200;
+    private static final int NAME_INDEX_WEIGHT = 48;
     /**
      *
      * List all instance variables of the Commit class here with a useful
@@ -48,6 +84,12 @@ public class Commit implements Serializable {
      */
     private Date date;
 
+    /**
+     * The date as it was formatted into the id, or null for a commit stored before
+     * it was kept.
+     */
+    private transient String idDate;
+
     /**
      * The ids of this commit's parents. The first is the original parent.
      */
@@ -57,9 +99,27 @@ public class Commit implements Serializable {
     /**
      * The blobs that this commit tracks. Key is sha1. Value is the original file name.
      * For instance, key is a9s8d...9dsf, and value is text1.txt.
+     * Commits with a tree load this from it on first use.
      */
     private HashMap<String, String> idToName;
 
+    /**
+     * The id of the Tree of this commit's files, or null for commits stored before
+     * trees existed.
+     */
+    private String treeId;
+
+    /**
+     * The file names of idToName mapped to their blob ids, built on first use.
+     */
+    private transient HashMap<String, String> nameToId;
+
+    /**
+     * The encoded files of the commit this one was read from, while idToName has
+     * not been decoded from them yet.
+     */
+    private transient ByteBuffer encodedFiles;
+
     /**
      * The reference, as well as the sha1 id, of this commit.
      */
@@ -72,9 +132,11 @@ public class Commit implements Serializable {
     public Commit() {
         message = "initial commit";
         date = new Date(0);
+        idDate = date.toString();
         parent = null;
         secondParent = null;
         idToName = new HashMap<>();
+        treeId = Tree.local().emptyTree();
         id = generateIdInit();
     }
 
@@ -82,62 +144,57 @@ public class Commit implements Serializable {
      * Create new commit after HEAD.
      */
     public Commit(String message) {
-        Commit headCommit = getHeadCommit();
-        this.message = message;
-        date = new Date();
-        parent = headCommit.id;
-        secondParent = null;
-        idToName = new HashMap<>();
-        idToName.putAll(headCommit.getIdToName());
-        id = generateId();
-        addToObjects();
-        rmFromMapping();
+        this(message, null);
     }
 
     public Commit(String message, String secondParentId) {
         Commit headCommit = getHeadCommit();
         this.message = message;
         date = new Date();
+        idDate = date.toString();
         parent = headCommit.id;
         secondParent = secondParentId;
-        idToName = new HashMap<>();
-        idToName.putAll(headCommit.getIdToName());
+        treeId = headCommit.getTreeId();
+        HashMap<String, String> changes = new HashMap<>();
+        addToObjects(changes);
+        rmFromMapping(changes);
+        treeId = Tree.local().update(treeId, changes);
         id = generateId();
-        addToObjects();
-        rmFromMapping();
     }
 
     /**
-     * Moves the files in the addition to the object.
+     * Stores the files in the addition as objects, recording in changes the new
+     * blob id of each file name.
      */
-    private void addToObjects() {
-
-        Iterator<Map.Entry<String, String>> iterator = Blob.getAddFiles().entrySet().iterator();
+    private void addToObjects(HashMap<String, String> changes) {
 
-        while (iterator.hasNext()) {
-            Map.Entry<String, String> entry = iterator.next();
-            // Removes the old version in the idToName mapping and updates.
-            idToName.entrySet().removeIf(entryTracked ->
-                    entryTracked.getValue().equals(entry.getValue()));
-            idToName.put(entry.getKey(), entry.getValue());
+        for (Map.Entry<String, String> entry : Blob.getAddFiles().entrySet()) {
+            // The old version is the base the new one is stored as a delta against.
+            String oldId = nameToIdInMapping(entry.getValue());
+            changes.put(entry.getValue(), entry.getKey());
+            // The staged file stays until the new staging area is saved with the commit.
             File src = join(ADD_DIR, entry.getKey());
-            File tar = join(BLOBS_DIR, entry.getKey());
-            move(src, tar);
-            // Removes the processed entry from Blob.getAddFiles().
-            iterator.remove();
+            ObjectStore.local().copyIn(ObjectStore.BLOB, entry.getKey(), src, oldId);
+            Journal.local().delete(src);
         }
+        Blob.clearAddFiles();
     }
 
     /**
      * According to the given name, returns the id in the mapping.
      */
     public String nameToIdInMapping(String fileName) {
-        for (Map.Entry<String, String> entryTracked : idToName.entrySet()) {
-            if (entryTracked.getValue().equals(fileName)) {
-                return entryTracked.getKey();
+        if (idToName == null && treeId != null) {
+            // One file is looked up in the tree without loading the others.
+            return Tree.local().lookup(treeId, fileName);
+        }
+        if (nameToId == null) {
+            nameToId = new HashMap<>(getIdToName().size() * 2);
+            for (Map.Entry<String, String> entry : getIdToName().entrySet()) {
+                nameToId.put(entry.getValue(), entry.getKey());
             }
         }
-        return null;
+        return nameToId.get(fileName);
     }
 
 
@@ -147,14 +204,14 @@ public class Commit implements Serializable {
     }
 
     /**
-     * Removes the files that are tracked in the removal from the current blob mapping.
+     * Records in changes the removal of the files that are tracked in the removal.
      */
-    private void rmFromMapping() {
+    private void rmFromMapping(HashMap<String, String> changes) {
         Iterator<Map.Entry<String, String>> iterator = Blob.getRmFiles().entrySet().iterator();
         while (iterator.hasNext()) {
             Map.Entry<String, String> entry = iterator.next();
-            idToName.remove(entry.getKey());
-            join(RM_DIR, entry.getKey()).delete();
+            changes.put(entry.getValue(), null);
+            Journal.local().delete(join(RM_DIR, entry.getKey()));
             iterator.remove();
         }
     }
@@ -163,15 +220,28 @@ public class Commit implements Serializable {
      * Each commit is identified by its SHA-1 id,
      * which must include the file (blob) references of its files, parent reference,
      * log message, and commit time.
-     * Generates the id according to message, date, parent, secondParent, idToName
+     * Generates the id according to message, date, parent, secondParent and the tree,
+     * whose id stands for all the files.
      */
     private String generateId() {
-        return sha1(message, date.toString(), parent,
-                Objects.requireNonNullElse(secondParent, ""), idToName.toString());
+        return sha1(message, idDate, parent,
+                Objects.requireNonNullElse(secondParent, ""), treeId);
     }
 
     private String generateIdInit() {
-        return sha1(message, date.toString(), "", "", idToName.toString());
+        return sha1(message, idDate, "", "", new HashMap<>().toString());
+    }
+
+    /**
+     * Returns the id the fields of this commit hash to, or null if it cannot be
+     * computed again: for a commit stored without the date string its id was made
+     * from, since the time zone then is not known.
+     */
+    public String computeId() {
+        if (idDate == null) {
+            return null;
+        }
+        return parent == null ? generateIdInit() : generateId();
     }
 
     /**
@@ -181,51 +251,191 @@ public class Commit implements Serializable {
         return id;
     }
 
+    /**
+     * Returns the id of the tree of this commit's files. A commit stored before
+     * trees existed gets one built from its files.
+     */
+    public String getTreeId() {
+        if (treeId == null) {
+            treeId = Tree.local().write(getIdToName());
+        }
+        return treeId;
+    }
+
+    /**
+     * Returns the id of the tree this commit was stored with, or null for a commit
+     * stored with its files. Unlike getTreeId, never builds a tree.
+     */
+    public String storedTreeId() {
+        return treeId;
+    }
+
     /**
      * Saves this commit to the object.
      */
     public void saveCommit() {
-        writeObject(join(COMMITS_DIR, id), this);
+        ObjectStore.local().write(ObjectStore.COMMIT, id, encode());
+        CommitIndex.local().add(id);
+        CommitGraph.local().add(this);
+        MessageIndex.local().add(this);
+        CommitCache.process().put(this);
+    }
+
+    /**
+     * Returns the commit with the full id, from the CommitCache or else read from
+     * the object store, or null if there is no such commit.
+     */
+    public static Commit fromId(String id) {
+        return CommitCache.process().lookup(id, ObjectStore.local());
+    }
+
+    /**
+     * Returns an estimate of the memory this commit takes, in bytes, which grows
+     * once its files are loaded.
+     */
+    public long weight() {
+        long weight = BASE_WEIGHT + 2L * message.length();
+        if (idToName != null) {
+            weight += (long) idToName.size() * FILE_WEIGHT;
+        }
+        if (nameToId != null) {
+            weight += (long) nameToId.size() * NAME_INDEX_WEIGHT;
+        }
+        if (encodedFiles != null) {
+            weight += encodedFiles.remaining();
+        }
+        return weight;
+    }
+
+    /**
+     * Returns if contents are a commit in the binary format, not a legacy one.
+     */
+    public static boolean isEncoded(byte[] contents) {
+        return contents.length >= 4 && ByteBuffer.wrap(contents).getInt(0) == MAGIC;
+    }
+
+    /**
+     * Returns this commit in the binary format.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(treeId == null ? VERSION_FILES
+                    : idDate == null ? VERSION_TREE : VERSION_DATED);
+            out.write(hexToBytes(id));
+            out.writeByte((parent != null ? HAS_PARENT : 0)
+                    | (secondParent != null ? HAS_SECOND_PARENT : 0));
+            if (parent != null) {
+                out.write(hexToBytes(parent));
+            }
+            if (secondParent != null) {
+                out.write(hexToBytes(secondParent));
+            }
+            out.writeLong(date.getTime());
+            writeString(out, message);
+            if (treeId != null && idDate != null) {
+                writeString(out, idDate);
+            }
+            if (treeId != null) {
+                out.write(hexToBytes(treeId));
+            } else {
+                Map<String, String> files = getIdToName();
+                out.writeInt(files.size());
+                for (Map.Entry<String, String> entry : files.entrySet()) {
+                    out.write(hexToBytes(entry.getKey()));
+                    writeString(out, entry.getValue());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    /**
+     * Reads a commit from contents in either format. Only the fields before the
+     * files are decoded now.
+     */
+    public static Commit decode(byte[] contents) {
+        if (!isEncoded(contents)) {
+            return deserialize(contents, Commit.class);
+        }
+        ByteBuffer in = ByteBuffer.wrap(contents);
+        in.getInt();
+        byte version = in.get();
+        if (version != VERSION_FILES && version != VERSION_TREE && version != VERSION_DATED) {
+            throw new IllegalArgumentException("unknown commit version");
+        }
+        return new Commit(in, version);
+    }
+
+    /**
+     * Decodes the fields of a commit of the version, up to its files, from in.
+     */
+    private Commit(ByteBuffer in, byte version) {
+        id = readId(in);
+        int parents = in.get();
+        parent = (parents & HAS_PARENT) != 0 ? readId(in) : null;
+        secondParent = (parents & HAS_SECOND_PARENT) != 0 ? readId(in) : null;
+        date = new Date(in.getLong());
+        message = readString(in);
+        if (version == VERSION_DATED) {
+            idDate = readString(in);
+        }
+        if (version != VERSION_FILES) {
+            treeId = readId(in);
+        } else {
+            encodedFiles = in.slice();
+        }
+    }
+
+    private static String readId(ByteBuffer in) {
+        byte[] id = new byte[UID_LENGTH / 2];
+        in.get(id);
+        return bytesToHex(id);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
     }
 
     /**
      * returns if the blob with the id (blobId) has exits in this commit
      */
     public boolean hasBlob(String fileId) {
-        return idToName.containsKey(fileId);
+        return getIdToName().containsKey(fileId);
     }
 
     /**
      * Returns if the commit has the file with fileName.
      */
     public boolean hasFile(String fileName) {
-        for (Map.Entry<String, String> entry : idToName.entrySet()) {
-            if (entry.getValue().equals(fileName)) {
-                return true;
-            }
-        }
-        return false;
+        return nameToIdInMapping(fileName) != null;
     }
 
     /**
      * gets the commit to which HEAD points
      */
     public static Commit getHeadCommit() {
-        File headCommitPath = join(COMMITS_DIR, readContentsAsString(HEAD));
-        return readObject(headCommitPath, Commit.class);
+        return fromId(Journal.local().readString(HEAD));
     }
 
     /**
      * Get the given branch's HEAD points
      */
     public static Commit getHeadCommitOfBranch(String branchName) {
-        File branHead = join(HEADS_DIR, branchName);
-        if (branHead.exists()) {
-            File headCommitPath = join(COMMITS_DIR, readContentsAsString(branHead));
-            if (!headCommitPath.exists()) {
-                return null;
-            }
-            return readObject(headCommitPath, Commit.class);
+        String id = Journal.local().readString(Repository.branchFile(branchName));
+        if (id != null) {
+            return fromId(id);
         }
         return null;
     }
@@ -243,12 +453,28 @@ public class Commit implements Serializable {
         return secondParent;
     }
     public HashMap<String, String> getIdToName() {
+        if (idToName == null && encodedFiles != null) {
+            ByteBuffer in = encodedFiles;
+            int count = in.getInt();
+            idToName = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String fileId = readId(in);
+                idToName.put(fileId, readString(in));
+            }
+            encodedFiles = null;
+        } else if (idToName == null && treeId != null) {
+            idToName = Tree.local().idToName(treeId);
+        }
         return idToName;
     }
+    @Override
+    public void dump() {
+        System.out.printf("id: %s%nmessage: %s%ndate: %s%nparents: %s %s%ntree: %s%nfiles: %s%n",
+                id, message, date, parent, secondParent, treeId, getIdToName());
+    }
     public Commit parentCommit() {
         if (parent != null) {
-            File parentFile = join(COMMITS_DIR, parent);
-            return readObject(parentFile, Commit.class);
+            return fromId(parent);
         }
         return null;
     }
@@ -0,0 +1,108 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The commits read in this process, by id, so that a commit asked for again, such
+ * as the head commit during a merge, is not read and decoded again.
+ * <p>
+ * Commits never change once stored, so entries stay valid for as long as the
+ * process runs, across the commands of a Daemon too. The cache holds commits up to
+ * an estimate of core.commitCacheSize bytes (default 64 MB) of memory and evicts
+ * the least recently used first. A commit's estimate grows when its files are
+ * loaded, so it is measured again each time it is used.
+ */
+public class CommitCache {
+
+    public static final int DEFAULT_SIZE = 64 << 20;
+
+    private static final CommitCache PROCESS = new CommitCache();
+
+    /**
+     * Commits by id in order of use, the least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> commits = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+
+    /**
+     * The cache of this process.
+     */
+    public static CommitCache process() {
+        return PROCESS;
+    }
+
+    /**
+     * Returns the commit with the full id, reading it from store if it is not cached,
+     * or null if there is no such commit.
+     */
+    public Commit lookup(String id, ObjectStore store) {
+        Entry entry = commits.get(id);
+        if (entry != null) {
+            hits++;
+            weigh(entry);
+            evict();
+            return entry.commit;
+        }
+        misses++;
+        byte[] contents = store.read(ObjectStore.COMMIT, id);
+        if (contents == null) {
+            return null;
+        }
+        Commit commit = Commit.decode(contents);
+        put(commit);
+        return commit;
+    }
+
+    /**
+     * Caches the commit, which was just made or read.
+     */
+    public void put(Commit commit) {
+        Entry entry = new Entry(commit);
+        Entry old = commits.put(commit.getId(), entry);
+        if (old != null) {
+            size -= old.weight;
+        }
+        weigh(entry);
+        evict();
+    }
+
+    private void weigh(Entry entry) {
+        long weight = entry.commit.weight();
+        size += weight - entry.weight;
+        entry.weight = weight;
+    }
+
+    /**
+     * Evicts the least recently used commits until the cache fits its size, keeping
+     * at least the one used last.
+     */
+    private void evict() {
+        long limit = Config.local().getInt(Config.COMMIT_CACHE_SIZE, DEFAULT_SIZE);
+        Iterator<Entry> lru = commits.values().iterator();
+        while (size > limit && commits.size() > 1) {
+            size -= lru.next().weight;
+            lru.remove();
+        }
+    }
+
+    /**
+     * Returns the counters of the cache, as printed by the cache-stats command.
+     */
+    public String stats() {
+        return String.format("Commit cache: %d commits, %d bytes, %d hits, %d misses.",
+                commits.size(), size, hits, misses);
+    }
+
+    private static class Entry {
+        private final Commit commit;
+        private long weight;
+
+        Entry(Commit commit) {
+            this.commit = commit;
+        }
+    }
+}
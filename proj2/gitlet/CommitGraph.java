@@ -0,0 +1,320 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * The shape of the commit history, kept in .gitlet/objects/commit-graph so that
+ * ancestry questions can be answered without deserializing commits.
+ * <p>
+ * The file is "GCGR", version, count, then one 40-byte entry per commit:
+ * id (20 bytes), position of the first parent, position of the second parent
+ * (-1 if none), generation number and commit time in milliseconds.
+ * Entries are appended as commits are made, so parents always come before their
+ * children. The generation of a root commit is 1; any other commit's generation is
+ * one more than the largest generation of its parents, so an ancestor always has a
+ * smaller generation than its descendants.
+ */
+public class CommitGraph {
+
+    private static final int MAGIC = 0x47434752;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final int ID_BYTES = 20;
+    private static final int ENTRY = ID_BYTES + 4 + 4 + 4 + 8;
+
+    /**
+     * Flags painted on commits during the merge-base search.
+     */
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+
+    private static CommitGraph local;
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final File graphFile;
+
+    /**
+     * The entries of the graph file, or null until first needed.
+     */
+    private ByteBuffer entries;
+    private int count;
+    private HashMap<String, Integer> positions;
+
+    public CommitGraph(File gitletDir, ObjectStore store) {
+        this.gitletDir = gitletDir;
+        this.store = store;
+        graphFile = join(gitletDir, "objects", "commit-graph");
+    }
+
+    /**
+     * The commit graph of the repository in the current working directory.
+     */
+    public static CommitGraph local() {
+        if (local == null) {
+            local = new CommitGraph(Repository.GITLET_DIR, ObjectStore.local());
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Returns the position of the commit with the full id, reading the graph file
+     * again, and then rebuilding the graph, if the commit is missing from it.
+     * Returns -1 if there is no such commit.
+     */
+    public int position(String id) {
+        load();
+        Integer pos = positions.get(id);
+        if (pos == null && store.has(ObjectStore.COMMIT, id)) {
+            // Another process may have added it since the file was read.
+            entries = null;
+            load();
+            pos = positions.get(id);
+        }
+        if (pos == null && store.has(ObjectStore.COMMIT, id)) {
+            rebuild();
+            pos = positions.get(id);
+        }
+        return pos == null ? -1 : pos;
+    }
+
+    public String id(int pos) {
+        byte[] id = new byte[ID_BYTES];
+        entries.get(HEADER + pos * ENTRY, id);
+        return bytesToHex(id);
+    }
+
+    /**
+     * Returns the position of the first parent, or -1 for the initial commit.
+     */
+    public int parent(int pos) {
+        return entries.getInt(HEADER + pos * ENTRY + ID_BYTES);
+    }
+
+    /**
+     * Returns the position of the second parent, or -1 if this is not a merge.
+     */
+    public int secondParent(int pos) {
+        return entries.getInt(HEADER + pos * ENTRY + ID_BYTES + 4);
+    }
+
+    public int generation(int pos) {
+        return entries.getInt(HEADER + pos * ENTRY + ID_BYTES + 8);
+    }
+
+    public long time(int pos) {
+        return entries.getLong(HEADER + pos * ENTRY + ID_BYTES + 12);
+    }
+
+    /**
+     * Appends a newly saved commit. Its parents must already be in the graph.
+     */
+    public void add(Commit commit) {
+        load();
+        if (positions.containsKey(commit.getId())) {
+            return;
+        }
+        int first = commit.getParent() == null ? -1 : position(commit.getParent());
+        int second = commit.getSecondParent() == null ? -1 : position(commit.getSecondParent());
+        if (positions.containsKey(commit.getId())) {
+            // Finding a parent rebuilt the graph, which picked up this commit too.
+            return;
+        }
+        ByteBuffer entry = entry(commit.getId(), first, second, commit.getDate().getTime());
+        try (FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(entry, HEADER + (long) count * ENTRY);
+            channel.write(ByteBuffer.allocate(4).putInt(0, count + 1), 8);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        entries = null;
+    }
+
+    /**
+     * Builds the entry of a commit whose parents are at the positions first and second.
+     */
+    private ByteBuffer entry(String id, int first, int second, long time) {
+        int generation = 1;
+        if (first >= 0) {
+            generation = Math.max(generation, generation(first) + 1);
+        }
+        if (second >= 0) {
+            generation = Math.max(generation, generation(second) + 1);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        entry.put(hexToBytes(id)).putInt(first).putInt(second).putInt(generation).putLong(time);
+        entry.flip();
+        return entry;
+    }
+
+    /**
+     * Rewrites the graph from every commit in the object store.
+     */
+    public void rebuild() {
+        HashMap<String, Commit> commits = new HashMap<>();
+        for (String id : store.ids(ObjectStore.COMMIT)) {
+            commits.put(id, Commit.decode(store.read(ObjectStore.COMMIT, id)));
+        }
+        // Orders the commits so that parents come first, without recursion.
+        List<Commit> order = new ArrayList<>();
+        HashSet<String> done = new HashSet<>();
+        Deque<Commit> stack = new ArrayDeque<>();
+        for (Commit root : commits.values()) {
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Commit top = stack.peek();
+                if (done.contains(top.getId())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (String parent : new String[]{top.getParent(), top.getSecondParent()}) {
+                    if (parent != null && !done.contains(parent) && commits.containsKey(parent)) {
+                        stack.push(commits.get(parent));
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    done.add(top.getId());
+                    order.add(top);
+                }
+            }
+        }
+        entries = ByteBuffer.allocate(HEADER + order.size() * ENTRY);
+        entries.putInt(MAGIC).putInt(VERSION).putInt(order.size());
+        positions = new HashMap<>();
+        count = 0;
+        for (Commit commit : order) {
+            Integer first = commit.getParent() == null ? null : positions.get(commit.getParent());
+            Integer second = commit.getSecondParent() == null
+                    ? null : positions.get(commit.getSecondParent());
+            entries.put(entry(commit.getId(), first == null ? -1 : first,
+                    second == null ? -1 : second, commit.getDate().getTime()));
+            positions.put(commit.getId(), count);
+            count += 1;
+        }
+        // A command that only reads keeps the rebuilt graph to itself unless the lock
+        // is free, since the file may be gaining a commit meanwhile.
+        if (Journal.local().tryLock()) {
+            try {
+                File tmp = join(gitletDir, "objects", "commit-graph.tmp");
+                writeContents(tmp, entries.array());
+                replace(tmp, graphFile);
+            } finally {
+                Journal.local().unlock();
+            }
+        }
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        if (!graphFile.exists()) {
+            rebuild();
+            return;
+        }
+        entries = ByteBuffer.wrap(readContents(graphFile));
+        if (entries.getInt(0) != MAGIC || entries.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad commit graph " + graphFile);
+        }
+        count = entries.getInt(8);
+        positions = new HashMap<>(count * 2);
+        for (int pos = 0; pos < count; pos++) {
+            positions.put(id(pos), pos);
+        }
+    }
+
+    /**
+     * Returns the id of a best common ancestor of the commits a and b: a common
+     * ancestor that is not an ancestor of any other common ancestor.
+     * <p>
+     * Commits are visited in order of decreasing generation, painting each with the
+     * heads it is reachable from. Every descendant of a commit has a larger
+     * generation, so a commit's paint is complete when it is visited, and the first
+     * commit painted by both heads is the answer. Nothing below it is read.
+     */
+    public String mergeBase(String a, String b) {
+        int posA = position(a);
+        int posB = position(b);
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) ->
+                Integer.compare(generation(y), generation(x)));
+        flags.put(posA, FROM_A);
+        flags.merge(posB, FROM_B, (x, y) -> x | y);
+        queue.add(posA);
+        if (posB != posA) {
+            queue.add(posB);
+        }
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            int flag = flags.get(pos);
+            if (flag == (FROM_A | FROM_B)) {
+                return id(pos);
+            }
+            for (int parent : new int[]{parent(pos), secondParent(pos)}) {
+                if (parent < 0) {
+                    continue;
+                }
+                Integer old = flags.get(parent);
+                if (old == null) {
+                    flags.put(parent, flag);
+                    queue.add(parent);
+                } else {
+                    flags.put(parent, old | flag);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns if the commit ancestor is the commit descendant or one of its ancestors.
+     * The walk never goes below the generation of ancestor.
+     */
+    public boolean isAncestor(String ancestor, String descendant) {
+        int target = position(ancestor);
+        int start = position(descendant);
+        int floor = generation(target);
+        HashSet<Integer> seen = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == target) {
+                return true;
+            }
+            if (!seen.add(pos) || generation(pos) <= floor) {
+                continue;
+            }
+            for (int parent : new int[]{parent(pos), secondParent(pos)}) {
+                if (parent >= 0) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,253 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * A sorted index of the ids of all commits, kept in .gitlet/objects/commit-index.
+ * <p>
+ * The file is "GCIX", version, count, then the ids as 20-byte binary SHA-1s in
+ * ascending order. It is memory-mapped, so resolving an abbreviated id is a binary
+ * search over the mapping rather than a listing of the commits directory.
+ * Each commit inserts its id; an index that is missing (a repository made before
+ * the index existed) is rebuilt from the object store on first use.
+ */
+public class CommitIndex {
+
+    private static final int MAGIC = 0x47434958;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final int ID_BYTES = 20;
+
+    private static CommitIndex local;
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final File indexFile;
+
+    /**
+     * The mapped index, or null until it is first needed. A command that reads
+     * without the lock keeps an index it had to rebuild in memory instead.
+     */
+    private ByteBuffer map;
+    private int count;
+
+    public CommitIndex(File gitletDir, ObjectStore store) {
+        this.gitletDir = gitletDir;
+        this.store = store;
+        indexFile = join(gitletDir, "objects", "commit-index");
+    }
+
+    /**
+     * The commit index of the repository in the current working directory.
+     */
+    public static CommitIndex local() {
+        if (local == null) {
+            local = new CommitIndex(Repository.GITLET_DIR, ObjectStore.local());
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Returns the number of indexed commits.
+     */
+    public int size() {
+        load();
+        return count;
+    }
+
+    /**
+     * Returns the full id at position i.
+     */
+    public String get(int i) {
+        load();
+        byte[] id = new byte[ID_BYTES];
+        map.get(HEADER + i * ID_BYTES, id);
+        return bytesToHex(id);
+    }
+
+    /**
+     * Returns all indexed ids in lexicographic order.
+     */
+    public List<String> ids() {
+        load();
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to limit full ids that start with the hexadecimal prefix, in order.
+     * More than one result means the prefix is ambiguous.
+     */
+    public List<String> matches(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH || !isHex(prefix)) {
+            return result;
+        }
+        load();
+        StringBuilder padded = new StringBuilder(prefix.toLowerCase());
+        while (padded.length() < UID_LENGTH) {
+            padded.append('0');
+        }
+        for (int i = lowerBound(hexToBytes(padded.toString()));
+             i < count && result.size() < limit; i++) {
+            String id = get(i);
+            if (!id.startsWith(prefix.toLowerCase())) {
+                break;
+            }
+            result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * Returns if the commit with the full id is indexed.
+     */
+    public boolean contains(String id) {
+        load();
+        byte[] key = hexToBytes(id);
+        int i = lowerBound(key);
+        return i < count && compareAt(i, key) == 0;
+    }
+
+    /**
+     * Inserts the id of a new commit, rewriting the index in place of the old one.
+     */
+    public void add(String id) {
+        load();
+        byte[] key = hexToBytes(id);
+        int i = lowerBound(key);
+        if (i < count && compareAt(i, key) == 0) {
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER + (count + 1) * ID_BYTES);
+        out.putInt(MAGIC).putInt(VERSION).putInt(count + 1);
+        ByteBuffer old = map.duplicate();
+        old.position(HEADER).limit(HEADER + i * ID_BYTES);
+        out.put(old);
+        out.put(key);
+        old.limit(HEADER + count * ID_BYTES).position(HEADER + i * ID_BYTES);
+        out.put(old);
+        save(out.array());
+    }
+
+    /**
+     * Rebuilds the index from every commit in the object store.
+     */
+    public void rebuild() {
+        List<String> ids = store.ids(ObjectStore.COMMIT);
+        ByteBuffer out = ByteBuffer.allocate(HEADER + ids.size() * ID_BYTES);
+        out.putInt(MAGIC).putInt(VERSION).putInt(ids.size());
+        for (String id : ids) {
+            out.put(hexToBytes(id));
+        }
+        save(out.array());
+    }
+
+    /**
+     * Replaces the index file with contents and maps it again. Without the lock, which
+     * a command that only reads takes if it is free, only the loaded index is replaced:
+     * the file may be gaining a commit meanwhile.
+     */
+    private void save(byte[] contents) {
+        if (!Journal.local().tryLock()) {
+            map = ByteBuffer.wrap(contents);
+            count = map.getInt(8);
+            return;
+        }
+        try {
+            write(contents);
+        } finally {
+            Journal.local().unlock();
+        }
+        map = null;
+        load();
+    }
+
+    private void write(byte[] contents) {
+        File tmp = join(gitletDir, "objects", "commit-index.tmp");
+        writeContents(tmp, contents);
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private void load() {
+        if (map != null) {
+            return;
+        }
+        if (!indexFile.exists()) {
+            rebuild();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad commit index " + indexFile);
+        }
+        count = map.getInt(8);
+    }
+
+    /**
+     * Returns the first position whose id is not less than key.
+     */
+    private int lowerBound(byte[] key) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int compareAt(int i, byte[] key) {
+        int base = HEADER + i * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k++) {
+            int cmp = Integer.compare(map.get(base + k) & 0xff, key[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isHex(String s) {
+        for (char c : s.toCharArray()) {
+            if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Reports the size and speed trade-off of compressing objects, as set with
+ *  java gitlet.Main config core.compression LEVEL.
+ *  Invoke as
+ *      java gitlet.CompressionSpeedTest [FILE...]
+ *  Each FILE is compressed and inflated again at several deflate levels.
+ *  Without FILEs, generated source-like text and random bytes are used.
+ */
+public class CompressionSpeedTest {
+
+    /** The deflate levels to compare; 0 is storing objects as they are. */
+    private static final int[] LEVELS = {0, 1, 6, 9};
+
+    /** Times each level over the files named in ARGS. */
+    public static void main(String[] args) {
+        List<byte[]> samples = new ArrayList<>();
+        if (args.length == 0) {
+            samples.add(generateText(8 << 20));
+            samples.add(generateRandom(8 << 20));
+        } else {
+            for (String name : args) {
+                samples.add(Utils.readContents(new File(name)));
+            }
+        }
+        long total = 0;
+        for (byte[] sample : samples) {
+            total += sample.length;
+        }
+        System.out.printf("%d samples, %.2f MB%n", samples.size(), total / 1e6);
+        System.out.printf("%-6s %12s %8s %14s %14s%n",
+                "level", "stored", "ratio", "write MB/s", "read MB/s");
+        for (int level : LEVELS) {
+            timeLevel(samples, total, level);
+        }
+    }
+
+    /** Prints the stored size and the write and read speed of the SAMPLES,
+     *  TOTAL bytes in all, at LEVEL. */
+    private static void timeLevel(List<byte[]> samples, long total, int level) {
+        long stored = 0;
+        long writeNanos = 0;
+        long readNanos = 0;
+        for (byte[] sample : samples) {
+            long start = System.nanoTime();
+            byte[] packed = level == 0 ? sample : MyUtils.deflate(sample, level);
+            writeNanos += System.nanoTime() - start;
+            stored += packed.length;
+            start = System.nanoTime();
+            byte[] unpacked = level == 0 ? packed : MyUtils.inflate(packed);
+            readNanos += System.nanoTime() - start;
+            if (unpacked.length != sample.length) {
+                throw new IllegalStateException("round trip changed the size");
+            }
+        }
+        if (level == 0) {
+            System.out.printf("%-6d %12d %7.1f%% %14s %14s%n", level, stored,
+                    100.0 * stored / total, "-", "-");
+            return;
+        }
+        System.out.printf("%-6d %12d %7.1f%% %14.1f %14.1f%n", level, stored,
+                100.0 * stored / total, mbPerSecond(total, writeNanos),
+                mbPerSecond(total, readNanos));
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / 1e6 / (nanos / 1e9);
+    }
+
+    /** Returns about SIZE bytes of text resembling source code. */
+    private static byte[] generateText(int size) {
+        String[] words = {"public", "static", "void", "return", "int", "String",
+            "commit", "blob", "if", "else", "for", "new", "null", "id", "name",
+            "file", "=", "(", ")", "{", "}", ";", "//", "the", "of"};
+        Random random = new Random(61);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            int length = 3 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            text.append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    /** Returns SIZE random bytes, which do not compress. */
+    private static byte[] generateRandom(int size) {
+        byte[] bytes = new byte[size];
+        new Random(61).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Settings of a repository, kept as key=value lines in .gitlet/config.
+ * <p>
+ * A setting that is not in the file can also be given to a single run as a
+ * system property of the same name, e.g. java -Dcore.compression=6 gitlet.Main.
+ */
+public class Config {
+
+    /**
+     * The deflate level (1-9) that new objects are compressed with.
+     * Unset or 0 stores objects uncompressed.
+     */
+    public static final String COMPRESSION = "core.compression";
+
+    /**
+     * The longest chain of deltas a blob may be stored at the end of.
+     * 0 stores every blob whole.
+     */
+    public static final String DELTA_DEPTH = "core.deltaDepth";
+
+    /**
+     * The largest blob, in bytes, that is stored as a delta or used as a base.
+     */
+    public static final String DELTA_MAX_SIZE = "core.deltaMaxSize";
+
+    /**
+     * How many working files are read and hashed, or copied, at the same time.
+     * Unset means one per core.
+     */
+    public static final String HASH_THREADS = "core.hashThreads";
+
+    /**
+     * The estimated memory, in bytes, that the commits cached by a process may take.
+     */
+    public static final String COMMIT_CACHE_SIZE = "core.commitCacheSize";
+
+    /**
+     * Whether objects, the staging area and refs are forced to disk before a command
+     * finishes. Unset or 1 forces them; 0 leaves it to the system.
+     */
+    public static final String FSYNC = "core.fsync";
+
+    /**
+     * How many seconds an unreachable object is kept by gc after it was stored, so
+     * that commands reading without the lock can still finish with it. Unset is 0.
+     */
+    public static final String GC_GRACE = "gc.grace";
+
+    /**
+     * The integer settings, each with the least and greatest value it may be set to.
+     */
+    private static final Map<String, int[]> RANGES = Map.of(
+            COMPRESSION, new int[]{0, 9},
+            DELTA_DEPTH, new int[]{0, Integer.MAX_VALUE},
+            DELTA_MAX_SIZE, new int[]{0, Integer.MAX_VALUE},
+            HASH_THREADS, new int[]{1, Integer.MAX_VALUE},
+            COMMIT_CACHE_SIZE, new int[]{0, Integer.MAX_VALUE},
+            FSYNC, new int[]{0, 1},
+            GC_GRACE, new int[]{0, Integer.MAX_VALUE});
+
+    private static Config local;
+
+    private final File configFile;
+
+    /**
+     * The settings, loaded on first use.
+     */
+    private Properties properties;
+
+    public Config(File gitletDir) {
+        configFile = join(gitletDir, "config");
+    }
+
+    /**
+     * The settings of the repository in the current working directory.
+     */
+    public static Config local() {
+        if (local == null) {
+            local = new Config(Repository.GITLET_DIR);
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Returns the value of key, or null if it is not set.
+     */
+    public String get(String key) {
+        load();
+        String value = properties.getProperty(key);
+        return value != null ? value : System.getProperty(key);
+    }
+
+    /**
+     * Returns the integer value of key, or def if it is not set or not a number.
+     */
+    public int getInt(String key, int def) {
+        String value = get(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException excp) {
+            return def;
+        }
+    }
+
+    /**
+     * Returns if value may be set for key: an integer within its range for the
+     * integer settings, and anything for the others.
+     */
+    public static boolean valid(String key, String value) {
+        int[] range = RANGES.get(key);
+        if (range == null) {
+            return true;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            return number >= range[0] && number <= range[1];
+        } catch (NumberFormatException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the integer value of key, or def if it is not set or not a number,
+     * brought within min and max. A system property is not checked the way config
+     * checks a value, so settings that fail when out of range are read this way.
+     */
+    public int getInt(String key, int def, int min, int max) {
+        return Math.max(min, Math.min(max, getInt(key, def)));
+    }
+
+    /**
+     * Sets key to value and saves the file. A null value removes the key.
+     */
+    public void set(String key, String value) {
+        load();
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+        // Written aside and renamed over the file, so that a crash leaves either the
+        // old settings or the new ones, never a truncated file.
+        File tmp;
+        try {
+            tmp = Files.createTempFile(configFile.getParentFile().toPath(), "config", ".tmp")
+                    .toFile();
+            try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                properties.store(out, null);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        boolean sync = getInt(FSYNC, 1) != 0;
+        if (sync) {
+            MyUtils.fsync(tmp);
+        }
+        MyUtils.replace(tmp, configFile);
+        if (sync) {
+            MyUtils.fsync(configFile.getParentFile());
+        }
+    }
+
+    private void load() {
+        if (properties != null) {
+            return;
+        }
+        properties = new Properties();
+        if (configFile.exists()) {
+            try (InputStream in = Files.newInputStream(configFile.toPath())) {
+                properties.load(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
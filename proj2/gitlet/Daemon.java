@@ -0,0 +1,197 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * A long-running gitlet that serves the commands of clients over the Unix domain
+ * socket .gitlet/daemon.sock, so that each command pays neither for starting a
+ * JVM nor for loading the repository's caches again.
+ * <p>
+ * A client sends its working directory and its arguments, each as a length and
+ * UTF-8 bytes after the number of arguments, and reads what the command prints
+ * until the daemon closes the connection. Commands run one at a time, each with
+ * System.out sent to its client and with the staging area and current branch read
+ * again from .gitlet, as a separate run would. The object store, the commit index
+ * and graph, and the stat cache are kept between commands; they are only read
+ * again when the files they come from were changed by another process, or the
+ * config was. The daemon is started with java gitlet.Main daemon and stopped with
+ * java gitlet.Main daemon stop; it serves only the directory it was started in.
+ */
+public class Daemon {
+
+    /**
+     * The socket the daemon listens on.
+     */
+    public static final File SOCKET = join(Repository.GITLET_DIR, "daemon.sock");
+
+    /**
+     * The files the kept caches are read from. A change to any of them made outside
+     * the daemon makes it forget the caches.
+     */
+    private static final File[] WATCHED = {
+        join(Repository.GITLET_DIR, "config"),
+        join(Repository.OBJECTS_DIR, "pack"),
+        join(Repository.OBJECTS_DIR, "commit-index"),
+        join(Repository.OBJECTS_DIR, "commit-graph"),
+    };
+
+    /**
+     * The size and modification time of each watched file after the last command.
+     */
+    private static long[] stamp;
+
+    /**
+     * Serves commands until a client sends daemon stop.
+     */
+    public static void serve() {
+        if (!Repository.GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (Client.running()) {
+            throw error("A daemon is already running.");
+        }
+        SOCKET.delete();
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(SOCKET.toPath());
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET::delete));
+            System.out.println("Serving " + Repository.CWD + ".");
+            boolean serving = true;
+            while (serving) {
+                try (SocketChannel client = server.accept()) {
+                    serving = handle(client);
+                } catch (EOFException excp) {
+                    // A client checking that the daemon is running.
+                    continue;
+                } catch (IOException excp) {
+                    // The client went away; serve the next one.
+                    continue;
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            SOCKET.delete();
+        }
+    }
+
+    /**
+     * Asks the running daemon to stop.
+     */
+    public static void stop() {
+        if (!Client.running()) {
+            throw error("No daemon is running.");
+        }
+        Client.forward(new String[]{"daemon", "stop"});
+    }
+
+    /**
+     * Runs the command of the client, returning false if it asked the daemon to stop.
+     */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        String cwd = readString(in);
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(in);
+        }
+        PrintStream console = System.out;
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)), false);
+        System.setOut(out);
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                boolean stopping = args.length == 2 && args[1].equals("stop");
+                System.out.println(stopping ? "Daemon stopped." : "A daemon is already running.");
+                return !stopping;
+            }
+            if (!new File(cwd).equals(Repository.CWD)) {
+                System.out.println("The daemon serves " + Repository.CWD + ".");
+                return true;
+            }
+            run(args);
+            return true;
+        } finally {
+            out.flush();
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Runs one command as a separate run of Main would, with the caches kept from
+     * the last command where they are still valid.
+     */
+    private static void run(String[] args) {
+        boolean writing = !Main.readOnly(args);
+        if (writing) {
+            // Taken before the caches are checked, so that no other process changes
+            // the repository until the command's own changes are stamped.
+            Journal.local().lock();
+        }
+        try {
+            long[] now = stamp();
+            if (stamp == null || !Arrays.equals(stamp, now)) {
+                resetCaches();
+            }
+            StatCache.local().newRun();
+            try {
+                Main.execute(args);
+            } catch (RuntimeException excp) {
+                // An unexpected failure may leave the caches half updated.
+                System.out.println("The command failed unexpectedly; nothing was changed.");
+                resetCaches();
+            }
+            stamp = stamp();
+        } finally {
+            if (writing) {
+                Journal.local().unlock();
+            }
+        }
+    }
+
+    private static void resetCaches() {
+        Config.resetLocal();
+        ObjectStore.resetLocal();
+        Tree.resetLocal();
+        CommitIndex.resetLocal();
+        CommitGraph.resetLocal();
+        MessageIndex.resetLocal();
+        StatCache.resetLocal();
+    }
+
+    private static long[] stamp() {
+        long[] result = new long[WATCHED.length * 2];
+        for (int i = 0; i < WATCHED.length; i++) {
+            result[2 * i] = WATCHED[i].length();
+            result[2 * i + 1] = WATCHED[i].lastModified();
+        }
+        return result;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+}
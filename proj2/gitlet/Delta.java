@@ -0,0 +1,164 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binary deltas between two versions of a file.
+ * <p>
+ * A delta is the length of the target as a varint, followed by instructions that
+ * rebuild the target from the base:
+ * <p>
+ * COPY, offset, length: append length bytes of the base starting at offset.
+ * INSERT, length, bytes: append the bytes that follow.
+ * <p>
+ * Numbers are varints: seven bits per byte, low bits first, the high bit set on
+ * every byte but the last.
+ */
+public class Delta {
+
+    private static final byte COPY = 1;
+    private static final byte INSERT = 2;
+
+    /**
+     * The length of the blocks of the base that the target is matched against.
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * The multiplier of the rolling hash, and PRIME to the power BLOCK - 1.
+     */
+    private static final int PRIME = 31;
+    private static final int TOP_POWER = power(PRIME, BLOCK - 1);
+
+    /**
+     * Returns a delta that rebuilds target from base.
+     * <p>
+     * Every BLOCK-aligned block of the base is indexed by its hash. A rolling hash
+     * then slides over the target one byte at a time; where it hits a block of the
+     * base with the same bytes, the match is extended in both directions and
+     * becomes one COPY. Whatever lies between copies is inserted.
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        int pending = 0;
+        int i = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            Integer match = blocks.get(h);
+            if (match != null && Arrays.equals(base, match, match + BLOCK, target, i, i + BLOCK)) {
+                int baseStart = match;
+                int start = i;
+                while (start > pending && baseStart > 0 && base[baseStart - 1] == target[start - 1]) {
+                    baseStart -= 1;
+                    start -= 1;
+                }
+                int baseEnd = match + BLOCK;
+                int end = i + BLOCK;
+                while (end < target.length && baseEnd < base.length
+                        && base[baseEnd] == target[end]) {
+                    baseEnd += 1;
+                    end += 1;
+                }
+                writeInsert(out, target, pending, start);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+                pending = end;
+                i = end;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = (h - (target[i] & 0xff) * TOP_POWER) * PRIME + (target[i + BLOCK] & 0xff);
+                }
+                i += 1;
+            }
+        }
+        writeInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the target that delta rebuilds from base.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        byte[] target = new byte[readVarint(in)];
+        int pos = 0;
+        while (in.hasRemaining()) {
+            byte op = in.get();
+            int length;
+            if (op == COPY) {
+                int offset = readVarint(in);
+                length = readVarint(in);
+                System.arraycopy(base, offset, target, pos, length);
+            } else if (op == INSERT) {
+                length = readVarint(in);
+                in.get(target, pos, length);
+            } else {
+                throw new IllegalArgumentException("bad delta instruction " + op);
+            }
+            pos += length;
+        }
+        if (pos != target.length) {
+            throw new IllegalArgumentException("delta does not rebuild its target");
+        }
+        return target;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Returns the hash of the BLOCK bytes of data starting at from.
+     */
+    private static int hash(byte[] data, int from) {
+        int h = 0;
+        for (int k = from; k < from + BLOCK; k++) {
+            h = h * PRIME + (data[k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int k = 0; k < exponent; k++) {
+            result *= base;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,435 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line diffs, by Myers' O((N + M) D) algorithm in its linear-space form: the
+ * middle snake of the shortest edit script is found by searching from both ends
+ * at once, and the two halves on either side of it are diffed in turn. Common
+ * leading and trailing lines are matched first, at every level. The two search
+ * vectors are allocated once for the whole diff. As in GNU diff, lines found in
+ * only one of the texts are left out before the search, since they are edits
+ * whatever the script is.
+ * <p>
+ * A line is its bytes up to and including its "\n"; a last line without one is a
+ * line too, and differs from the same line with one.
+ */
+public class Diff {
+
+    /**
+     * Lines of unchanged text shown before and after each change in a unified diff.
+     */
+    private static final int CONTEXT = 3;
+
+    private static final byte[] NO_NEWLINE =
+            "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int[] a;
+    private final int[] b;
+    private final int[] match;
+    private final int[] forward;
+    private final int[] backward;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        match = new int[a.length];
+        Arrays.fill(match, -1);
+        int size = a.length + b.length + 2;
+        forward = new int[size];
+        backward = new int[size];
+    }
+
+    /**
+     * Returns for each line of a, as ids from intern, the index of the line of b it is
+     * matched with in a longest common subsequence of the two, or -1 if it is not in
+     * it. The matches increase with the index in a.
+     */
+    public static int[] match(int[] a, int[] b) {
+        // A line that is not in the other text cannot be matched. Leaving such
+        // lines out keeps the common subsequence the same, and often shortens
+        // the edit script a great deal.
+        int ids = 0;
+        for (int id : a) {
+            ids = Math.max(ids, id + 1);
+        }
+        for (int id : b) {
+            ids = Math.max(ids, id + 1);
+        }
+        boolean[] inA = new boolean[ids];
+        boolean[] inB = new boolean[ids];
+        for (int id : a) {
+            inA[id] = true;
+        }
+        for (int id : b) {
+            inB[id] = true;
+        }
+        int[] aIndex = kept(a, inB);
+        int[] bIndex = kept(b, inA);
+        int[] aKept = new int[aIndex.length];
+        int[] bKept = new int[bIndex.length];
+        for (int i = 0; i < aIndex.length; i++) {
+            aKept[i] = a[aIndex[i]];
+        }
+        for (int j = 0; j < bIndex.length; j++) {
+            bKept[j] = b[bIndex[j]];
+        }
+        Diff diff = new Diff(aKept, bKept);
+        diff.diff(0, aKept.length, 0, bKept.length);
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+        for (int i = 0; i < aKept.length; i++) {
+            if (diff.match[i] >= 0) {
+                result[aIndex[i]] = bIndex[diff.match[i]];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the changes from a to b, the contents of the file name, to out as a
+     * unified diff with CONTEXT lines of context around each change. A null a or b is
+     * a file that does not exist. Files with a zero byte are binary, and are only said
+     * to differ. Writes nothing if the two are equal.
+     */
+    public static void unified(String name, byte[] a, byte[] b, ByteArrayOutputStream out) {
+        String aName = a == null ? "/dev/null" : "a/" + name;
+        String bName = b == null ? "/dev/null" : "b/" + name;
+        a = a == null ? new byte[0] : a;
+        b = b == null ? new byte[0] : b;
+        if (Arrays.equals(a, b)) {
+            return;
+        }
+        writeText(out, "diff --git a/" + name + " b/" + name + "\n");
+        if (isBinary(a) || isBinary(b)) {
+            writeText(out, "Binary files " + aName + " and " + bName + " differ\n");
+            return;
+        }
+        writeText(out, "--- " + aName + "\n+++ " + bName + "\n");
+        Lines aLines = new Lines(a);
+        Lines bLines = new Lines(b);
+        int[][] ids = intern(aLines, bLines);
+        List<int[]> changes = changes(match(ids[0], ids[1]), bLines.size());
+        int n = aLines.size();
+        int first = 0;
+        while (first < changes.size()) {
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last++;
+            }
+            // The lines around the changes are matched one to one.
+            int[] head = changes.get(first);
+            int[] tail = changes.get(last);
+            int aStart = Math.max(0, head[0] - CONTEXT);
+            int bStart = head[2] - (head[0] - aStart);
+            int aEnd = Math.min(n, tail[1] + CONTEXT);
+            int bEnd = tail[3] + (aEnd - tail[1]);
+            writeText(out, "@@ -" + range(aStart, aEnd - aStart)
+                    + " +" + range(bStart, bEnd - bStart) + " @@\n");
+            int i = aStart;
+            for (int c = first; c <= last; c++) {
+                int[] change = changes.get(c);
+                for (; i < change[0]; i++) {
+                    aLines.writeLine(out, ' ', i);
+                }
+                for (; i < change[1]; i++) {
+                    aLines.writeLine(out, '-', i);
+                }
+                for (int j = change[2]; j < change[3]; j++) {
+                    bLines.writeLine(out, '+', j);
+                }
+            }
+            for (; i < aEnd; i++) {
+                aLines.writeLine(out, ' ', i);
+            }
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Returns the stretches of unmatched lines, given the matches of a's lines with
+     * the m lines of b, as {aFrom, aTo, bFrom, bTo}.
+     */
+    private static List<int[]> changes(int[] match, int m) {
+        List<int[]> result = new ArrayList<>();
+        int i0 = 0;
+        int j0 = 0;
+        for (int i = 0; i <= match.length; i++) {
+            if (i < match.length && match[i] < 0) {
+                continue;
+            }
+            int j = i < match.length ? match[i] : m;
+            if (i > i0 || j > j0) {
+                result.add(new int[]{i0, i, j0, j});
+            }
+            i0 = i + 1;
+            j0 = j + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a range of lines as a hunk header gives it: the first line, counting
+     * from 1, and the number of lines, left out if 1. An empty range is given by the
+     * line before it.
+     */
+    private static String range(int start, int length) {
+        if (length == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (length == 0 ? start : start + 1) + "," + length;
+    }
+
+    /**
+     * Returns if data holds a NUL byte, and so is not text to be compared by lines.
+     */
+    static boolean isBinary(byte[] data) {
+        for (byte c : data) {
+            if (c == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String s) {
+        out.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the indices of the lines of text whose ids are in other.
+     */
+    private static int[] kept(int[] text, boolean[] other) {
+        int count = 0;
+        for (int id : text) {
+            if (other[id]) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (other[text[i]]) {
+                result[count++] = i;
+            }
+        }
+        return result;
+    }
+
+    private void diff(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            match[aLo++] = bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            match[--aHi] = --bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        long split = middleSnake(aLo, aHi, bLo, bHi);
+        if (split < 0) {
+            return;
+        }
+        int x = (int) (split >>> 32);
+        int y = (int) split;
+        diff(aLo, x, bLo, y);
+        diff(x, aHi, y, bHi);
+    }
+
+    /**
+     * Returns the point, as x << 32 | y, where the forward and backward searches of
+     * the edit graph of a[aLo, aHi) and b[bLo, bHi) meet, or -1 if the two have no
+     * line in common.
+     */
+    private long middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD;
+        Arrays.fill(forward, 0, length, -1);
+        Arrays.fill(backward, 0, length, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int k1Start = 0;
+        int k1End = 0;
+        int k2Start = 0;
+        int k2End = 0;
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])) {
+                    x1 = forward[k1Offset + 1];
+                } else {
+                    x1 = forward[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (odd) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1
+                            && x1 >= n - backward[k2Offset]) {
+                        return (long) (aLo + x1) << 32 | (bLo + y1);
+                    }
+                }
+            }
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])) {
+                    x2 = backward[k2Offset + 1];
+                } else {
+                    x2 = backward[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!odd) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return (long) (aLo + x1) << 32 | (bLo + y1);
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The lines of a text, as offsets into its bytes.
+     */
+    public static class Lines {
+        private final byte[] data;
+        private final int[] starts;
+
+        public Lines(byte[] data) {
+            this.data = data;
+            int count = 0;
+            for (byte c : data) {
+                if (c == '\n') {
+                    count++;
+                }
+            }
+            boolean partial = data.length > 0 && data[data.length - 1] != '\n';
+            starts = new int[count + (partial ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    starts[line++] = i + 1;
+                }
+            }
+            starts[starts.length - 1] = data.length;
+        }
+
+        public int size() {
+            return starts.length - 1;
+        }
+
+        /**
+         * Returns a hash of the bytes of line i.
+         */
+        int hash(int i) {
+            int h = 0;
+            for (int k = starts[i]; k < starts[i + 1]; k++) {
+                h = 31 * h + data[k];
+            }
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Returns if line i has the same bytes as line j of other.
+         */
+        boolean sameLine(int i, Lines other, int j) {
+            return Arrays.equals(data, starts[i], starts[i + 1],
+                    other.data, other.starts[j], other.starts[j + 1]);
+        }
+
+        /**
+         * Writes lines [from, to) to out.
+         */
+        public void writeTo(ByteArrayOutputStream out, int from, int to) {
+            out.write(data, starts[from], starts[to] - starts[from]);
+        }
+
+        /**
+         * Writes line i to out after the prefix, ending it with a note if the file
+         * does not.
+         */
+        void writeLine(ByteArrayOutputStream out, char prefix, int i) {
+            out.write(prefix);
+            writeTo(out, i, i + 1);
+            if (data[starts[i + 1] - 1] != '\n') {
+                out.writeBytes(NO_NEWLINE);
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of each text as ids, equal for equal lines across all of them.
+     * The lines are compared in place, in an open-addressing table of the first
+     * line seen with each id, rather than copied into strings.
+     */
+    public static int[][] intern(Lines... texts) {
+        int total = 0;
+        for (Lines text : texts) {
+            total += text.size();
+        }
+        int capacity = Integer.highestOneBit(Math.max(16, total) * 2);
+        int mask = capacity - 1;
+        int[] slotText = new int[capacity];
+        int[] slotLine = new int[capacity];
+        int[] slotHash = new int[capacity];
+        int[] slotId = new int[capacity];
+        Arrays.fill(slotId, -1);
+        int ids = 0;
+        int[][] result = new int[texts.length][];
+        for (int t = 0; t < texts.length; t++) {
+            Lines text = texts[t];
+            result[t] = new int[text.size()];
+            for (int i = 0; i < result[t].length; i++) {
+                int h = text.hash(i);
+                int slot = h & mask;
+                while (slotId[slot] >= 0 && (slotHash[slot] != h
+                        || !text.sameLine(i, texts[slotText[slot]], slotLine[slot]))) {
+                    slot = (slot + 1) & mask;
+                }
+                if (slotId[slot] < 0) {
+                    slotText[slot] = t;
+                    slotLine[slot] = i;
+                    slotHash[slot] = h;
+                    slotId[slot] = ids++;
+                }
+                result[t][i] = slotId[slot];
+            }
+        }
+        return result;
+    }
+}
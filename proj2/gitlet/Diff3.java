@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Three-way merges of the lines of a file, as diff3 does them.
+ * <p>
+ * The current ("ours") and given ("theirs") versions are each diffed against the
+ * version at the split point with Diff. A base line matched in both diffs is
+ * stable. Between two stable lines, each version has a chunk of lines, and the
+ * chunk is merged on its own:
+ * <ul>
+ * <li>if only one side changed it, that side's chunk is taken;</li>
+ * <li>if both changed it the same way, either chunk is taken;</li>
+ * <li>otherwise it is a conflict.</li>
+ * </ul>
+ * Lines that begin or end both sides of a conflict are moved out of it, so that
+ * a conflict holds only the lines that really differ. It is written as
+ * {@code <<<<<<< HEAD}, the current lines, {@code =======}, the given lines and
+ * {@code >>>>>>>}, each marker on a line of its own. A file changed completely on
+ * both sides gives the whole-file conflict that merge always used to write.
+ */
+public class Diff3 {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Diff.Lines ours;
+    private final Diff.Lines theirs;
+    private final int[] baseIds;
+    private final int[] ourIds;
+    private final int[] theirIds;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int conflicts;
+
+    private Diff3(byte[] base, byte[] ours, byte[] theirs) {
+        this.ours = new Diff.Lines(ours);
+        this.theirs = new Diff.Lines(theirs);
+        int[][] ids = Diff.intern(new Diff.Lines(base), this.ours, this.theirs);
+        baseIds = ids[0];
+        ourIds = ids[1];
+        theirIds = ids[2];
+    }
+
+    /**
+     * The merged contents of a file and the number of conflicts in them.
+     */
+    public static class Result {
+        private final byte[] contents;
+        private final int conflicts;
+
+        Result(byte[] contents, int conflicts) {
+            this.contents = contents;
+            this.conflicts = conflicts;
+        }
+
+        public byte[] getContents() {
+            return contents;
+        }
+
+        public int getConflicts() {
+            return conflicts;
+        }
+    }
+
+    /**
+     * Merges the changes from base to ours and from base to theirs.
+     */
+    public static Result merge(byte[] base, byte[] ours, byte[] theirs) {
+        Diff3 merge = new Diff3(base, ours, theirs);
+        merge.merge();
+        return new Result(merge.out.toByteArray(), merge.conflicts);
+    }
+
+    private void merge() {
+        int[] toOurs = Diff.match(baseIds, ourIds);
+        int[] toTheirs = Diff.match(baseIds, theirIds);
+        int b = 0;
+        int o = 0;
+        int t = 0;
+        for (int i = 0; i < baseIds.length; i++) {
+            if (toOurs[i] < 0 || toTheirs[i] < 0) {
+                continue;
+            }
+            chunk(b, i, o, toOurs[i], t, toTheirs[i]);
+            ours.writeTo(out, toOurs[i], toOurs[i] + 1);
+            b = i + 1;
+            o = toOurs[i] + 1;
+            t = toTheirs[i] + 1;
+        }
+        chunk(b, baseIds.length, o, ourIds.length, t, theirIds.length);
+    }
+
+    /**
+     * Merges the chunk between two stable lines: base[bLo, bHi), ours[oLo, oHi) and
+     * theirs[tLo, tHi).
+     */
+    private void chunk(int bLo, int bHi, int oLo, int oHi, int tLo, int tHi) {
+        boolean oursChanged = !same(baseIds, bLo, bHi, ourIds, oLo, oHi);
+        boolean theirsChanged = !same(baseIds, bLo, bHi, theirIds, tLo, tHi);
+        if (!theirsChanged || same(ourIds, oLo, oHi, theirIds, tLo, tHi)) {
+            ours.writeTo(out, oLo, oHi);
+        } else if (!oursChanged) {
+            theirs.writeTo(out, tLo, tHi);
+        } else {
+            int oStart = oLo;
+            while (oLo < oHi && tLo < tHi && ourIds[oLo] == theirIds[tLo]) {
+                oLo++;
+                tLo++;
+            }
+            ours.writeTo(out, oStart, oLo);
+            int oEnd = oHi;
+            while (oHi > oLo && tHi > tLo && ourIds[oHi - 1] == theirIds[tHi - 1]) {
+                oHi--;
+                tHi--;
+            }
+            out.writeBytes(OURS);
+            ours.writeTo(out, oLo, oHi);
+            out.writeBytes(SEPARATOR);
+            theirs.writeTo(out, tLo, tHi);
+            out.writeBytes(THEIRS);
+            ours.writeTo(out, oHi, oEnd);
+            conflicts++;
+        }
+    }
+
+    private static boolean same(int[] x, int xLo, int xHi, int[] y, int yLo, int yHi) {
+        if (xHi - xLo != yHi - yLo) {
+            return false;
+        }
+        for (int i = 0; i < xHi - xLo; i++) {
+            if (x[xLo + i] != y[yLo + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,8 +5,10 @@ import java.io.File;
 /** A debugging class whose main program may be invoked as follows:
  *      java gitlet.DumpObj FILE...
  *  where each FILE is a file produced by Utils.writeObject (or any file
- *  containing a serialized object).  This will simply read FILE,
- *  deserialize it, and call the dump method on the resulting Object.
+ *  containing a serialized object, possibly deflated, such as a commit in
+ *  .gitlet/objects/commits).  This will simply read FILE, inflate it if it
+ *  is deflated, deserialize it, and call the dump method on the resulting Object.
+ *  Commits in their binary format are decoded with Commit.decode instead.
  *  The object must implement the gitlet.Dumpable interface for this
  *  to work.  For example, you might define your class like this:
  *
@@ -29,12 +31,20 @@ import java.io.File;
  */
 public class DumpObj {
 
+    /** The first byte of a deflated (zlib) stream.  A serialized object
+     *  always starts with 0xAC instead. */
+    private static final byte ZLIB_HEADER = 0x78;
+
     /** Deserialize and apply dump to the contents of each of the files
      *  in FILES. */
     public static void main(String... files) {
         for (String fileName : files) {
-            Dumpable obj = Utils.readObject(new File(fileName),
-                                            Dumpable.class);
+            byte[] contents = Utils.readContents(new File(fileName));
+            if (contents.length > 0 && contents[0] == ZLIB_HEADER) {
+                contents = MyUtils.inflate(contents);
+            }
+            Dumpable obj = Commit.isEncoded(contents)
+                    ? Commit.decode(contents) : MyUtils.deserialize(contents, Dumpable.class);
             obj.dump();
             System.out.println("---");
         }
@@ -0,0 +1,281 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * Checks the objects of a repository: that the contents of each hash to its id, that
+ * every object a commit or tree links to is stored, and which objects nothing links
+ * to.
+ * <p>
+ * Commits and trees are read and decoded in parallel, and then the blobs are hashed
+ * in parallel, each streamed through ObjectStore.hash rather than read whole. A
+ * blob's id is the SHA-1 of its contents and its file name, which comes from a tree
+ * or the staging area; a blob nothing lists cannot be hashed, and is reported
+ * dangling. A commit's id is computed again with Commit.computeId,
+ * from the date string it was made from; a commit stored without it is only checked
+ * against the id recorded inside it. The links of a corrupt commit or tree are still
+ * followed, so that the objects it links to are not reported as well.
+ * <p>
+ * The ids of the objects whose contents matched are kept in .gitlet/fsck-verified,
+ * and a later check does not hash them again, since stored objects never change:
+ * on a big store, only the objects added since cost a read. A full check hashes
+ * everything. The links are checked every time, from the decoded commits and trees.
+ * The file is "GFSK", version, count, then the ids as 20-byte binary SHA-1s.
+ */
+public class Fsck {
+
+    private static final int MAGIC = 0x4746534b;
+    private static final int VERSION = 1;
+    private static final int HEADER = 12;
+    private static final int ID_BYTES = 20;
+
+    private final ObjectStore store;
+    private final File verifiedFile;
+    private final int threads;
+
+    /**
+     * The problems found, each a line such as "corrupt blob [id]", in order.
+     */
+    private final TreeSet<String> problems = new TreeSet<>();
+
+    private int checked;
+    private int hashed;
+
+    public Fsck(File gitletDir, ObjectStore store, int threads) {
+        this.store = store;
+        verifiedFile = join(gitletDir, "fsck-verified");
+        this.threads = threads;
+    }
+
+    /**
+     * Checks every stored object. rootCommits are the commits the refs point to and
+     * rootBlobs the staged blobs, id to file name; they count as linked to, though a
+     * blob staged for addition is kept in the staging area until it is committed, and
+     * need not be stored. With full, the objects verified by earlier checks are hashed
+     * again.
+     */
+    public void check(Collection<String> rootCommits, Map<String, String> rootBlobs,
+                      boolean full) {
+        List<String> commits = store.ids(ObjectStore.COMMIT);
+        List<String> trees = store.ids(ObjectStore.TREE);
+        List<String> blobs = store.ids(ObjectStore.BLOB);
+        Set<String> verified = full ? new HashSet<>() : readVerified();
+        Set<String> passed = ConcurrentHashMap.newKeySet();
+
+        // Commits and then trees, decoded in parallel; only the unverified are hashed.
+        List<String> decoding = new ArrayList<>(commits);
+        decoding.addAll(trees);
+        int commitCount = commits.size();
+        Links[] links = new Links[decoding.size()];
+        parallelFor(decoding.size(), threads, i -> {
+            String id = decoding.get(i);
+            boolean hash = !verified.contains(id);
+            try {
+                links[i] = i < commitCount ? commitLinks(id, hash) : treeLinks(id, hash);
+            } catch (RuntimeException excp) {
+                // Unreadable or undecodable: links[i] stays null.
+                return;
+            }
+            if (!links[i].corrupt && hash) {
+                passed.add(id);
+            }
+        });
+
+        Set<String> commitSet = new HashSet<>(commits);
+        Set<String> treeSet = new HashSet<>(trees);
+        Set<String> blobSet = new HashSet<>(blobs);
+        Set<String> linked = new HashSet<>(rootCommits);
+        linked.addAll(rootBlobs.keySet());
+        Map<String, String> names = new HashMap<>(rootBlobs);
+        for (int i = 0; i < links.length; i++) {
+            if (links[i] == null || links[i].corrupt) {
+                problems.add((i < commitCount ? "corrupt commit " : "corrupt tree ")
+                        + decoding.get(i));
+            }
+            if (links[i] == null) {
+                continue;
+            }
+            linked.addAll(links[i].commits);
+            linked.addAll(links[i].trees);
+            linked.addAll(links[i].blobs.keySet());
+            names.putAll(links[i].blobs);
+            missing("commit ", links[i].commits, commitSet);
+            missing("tree ", links[i].trees, treeSet);
+            missing("blob ", links[i].blobs.keySet(), blobSet);
+        }
+        missing("commit ", rootCommits, commitSet);
+
+        List<String> toHash = new ArrayList<>();
+        for (String id : blobs) {
+            if (!verified.contains(id) && names.containsKey(id)) {
+                toHash.add(id);
+            }
+        }
+        parallelFor(toHash.size(), threads, i -> {
+            String id = toHash.get(i);
+            try {
+                if (store.hash(ObjectStore.BLOB, id, names.get(id)).equals(id)) {
+                    passed.add(id);
+                }
+            } catch (RuntimeException excp) {
+                // Unreadable, as when a delta or its base is damaged.
+                return;
+            }
+        });
+        for (String id : toHash) {
+            if (!passed.contains(id)) {
+                problems.add("corrupt blob " + id);
+            }
+        }
+
+        dangling("commit ", commits, linked);
+        dangling("tree ", trees, linked);
+        dangling("blob ", blobs, linked);
+
+        checked = commits.size() + trees.size() + blobs.size();
+        hashed = toHash.size();
+        for (String id : decoding) {
+            if (!verified.contains(id)) {
+                hashed += 1;
+            }
+        }
+        // Forget objects gc has deleted since.
+        verified.retainAll(union(commitSet, treeSet, blobSet));
+        verified.addAll(passed);
+        writeVerified(verified);
+    }
+
+    /**
+     * Returns the problems found, in order.
+     */
+    public Collection<String> problems() {
+        return problems;
+    }
+
+    /**
+     * Returns the number of objects checked, and how many of them were hashed.
+     */
+    public int checked() {
+        return checked;
+    }
+
+    public int hashed() {
+        return hashed;
+    }
+
+    /**
+     * Returns the links of the commit with the id, marked corrupt if its contents do
+     * not match the id, which is only checked if hash is set.
+     */
+    private Links commitLinks(String id, boolean hash) {
+        Commit commit = Commit.decode(store.read(ObjectStore.COMMIT, id));
+        Links links = new Links();
+        links.corrupt = hash && !(commit.getId().equals(id)
+                && (commit.computeId() == null || commit.computeId().equals(id)));
+        for (String parent : new String[]{commit.getParent(), commit.getSecondParent()}) {
+            if (parent != null) {
+                links.commits.add(parent);
+            }
+        }
+        if (commit.storedTreeId() != null) {
+            links.trees.add(commit.storedTreeId());
+        } else {
+            links.blobs.putAll(commit.getIdToName());
+        }
+        return links;
+    }
+
+    /**
+     * Returns the links of the tree node with the id, marked corrupt if its contents
+     * do not hash to the id, which is only checked if hash is set.
+     */
+    private Links treeLinks(String id, boolean hash) {
+        byte[] contents = store.read(ObjectStore.TREE, id);
+        Links links = new Links();
+        links.corrupt = hash && !sha1(contents).equals(id);
+        Tree.links(contents, links.trees, links.blobs);
+        return links;
+    }
+
+    private void missing(String kind, Collection<String> ids, Set<String> stored) {
+        for (String id : ids) {
+            if (!stored.contains(id)) {
+                problems.add("missing " + kind + id);
+            }
+        }
+    }
+
+    private void dangling(String kind, List<String> ids, Set<String> linked) {
+        for (String id : ids) {
+            if (!linked.contains(id)) {
+                problems.add("dangling " + kind + id);
+            }
+        }
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b, Set<String> c) {
+        Set<String> result = new HashSet<>(a);
+        result.addAll(b);
+        result.addAll(c);
+        return result;
+    }
+
+    private Set<String> readVerified() {
+        Set<String> result = new HashSet<>();
+        if (!verifiedFile.isFile()) {
+            return result;
+        }
+        ByteBuffer in = ByteBuffer.wrap(readContents(verifiedFile));
+        if (in.remaining() < HEADER || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            // Damaged: everything is hashed again.
+            return result;
+        }
+        int count = in.getInt();
+        if (in.remaining() != count * ID_BYTES) {
+            return result;
+        }
+        byte[] id = new byte[ID_BYTES];
+        for (int i = 0; i < count; i++) {
+            in.get(id);
+            result.add(bytesToHex(id));
+        }
+        return result;
+    }
+
+    private void writeVerified(Set<String> ids) {
+        List<String> sorted = new ArrayList<>(ids);
+        sorted.sort(null);
+        ByteBuffer out = ByteBuffer.allocate(HEADER + sorted.size() * ID_BYTES);
+        out.putInt(MAGIC).putInt(VERSION).putInt(sorted.size());
+        for (String id : sorted) {
+            out.put(hexToBytes(id));
+        }
+        File tmp = join(verifiedFile.getParentFile(), "fsck-verified.tmp");
+        writeContents(tmp, out.array());
+        replace(tmp, verifiedFile);
+    }
+
+    /**
+     * What a commit or tree node links to: parent commits, trees, and blobs with
+     * their file names, and whether its contents did not match its id.
+     */
+    private static class Links {
+        private boolean corrupt;
+        private final List<String> commits = new ArrayList<>();
+        private final List<String> trees = new ArrayList<>();
+        private final Map<String, String> blobs = new HashMap<>();
+    }
+}
@@ -0,0 +1,564 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * Makes the changes a command makes to the state of a repository take effect all at
+ * once, or not at all if it is killed or the machine crashes.
+ * <p>
+ * The state is HEAD, the branch heads, Serialized (the staging area and current
+ * branch) and the files of the staging area. During a command, writes and deletions
+ * of those files are only recorded here, and reads through read and exists see them.
+ * Objects and newly staged files are written directly, and are reported with wrote.
+ * At the end of the command, commit:
+ * <ol>
+ * <li>forces every reported file, then each of their directories once, to disk, so
+ * that nothing the new state refers to can be lost;</li>
+ * <li>writes all the recorded changes to .gitlet/journal in one record ending in a
+ * CRC-32, forces it to disk and renames it into place;</li>
+ * <li>applies the changes, each file written to a temporary file and renamed over
+ * the old one, then forces the directories they are in;</li>
+ * <li>deletes the journal.</li>
+ * </ol>
+ * The syncs are all made at the end, one per file and one per directory touched,
+ * rather than around each write as the command goes. A command that fails records
+ * nothing. The next command first
+ * replays a journal it finds, which is safe to apply any number of times, or
+ * discards one whose checksum does not match, which was never committed.
+ * core.fsync 0 leaves out the syncs but keeps the renames.
+ * <p>
+ * A command that changes the repository first takes an exclusive lock on
+ * .gitlet/lock, waiting for any other such command to finish, and holds it until
+ * its changes are applied. A command that only reads takes no lock. It reads the
+ * state once, through snapshot, and sees nothing newer until it ends. Since one
+ * such read can overlap the applying of a journal, the state is read again, with
+ * any committed journal laid over the files, until two reads agree.
+ */
+public class Journal {
+
+    private static final int MAGIC = 0x474a4e4c;
+    private static final int VERSION = 1;
+
+    private static Journal local;
+
+    private final File gitletDir;
+    private final File journalFile;
+    private final File refsDir;
+
+    /**
+     * The new contents of each changed file, null for a deleted one, in order.
+     */
+    private final LinkedHashMap<File, byte[]> changes = new LinkedHashMap<>();
+
+    /**
+     * The files written directly that the changes may refer to.
+     */
+    private final Set<File> written = new LinkedHashSet<>();
+
+    /**
+     * The state as the snapshot saw it, by file, for a command that reads without
+     * the lock; null for any other command.
+     */
+    private Map<File, byte[]> snapshot;
+
+    /**
+     * The open lock file while this process holds the lock, the number of times it
+     * was taken, and the lock files of other repositories taken with it.
+     */
+    private FileChannel lockChannel;
+    private int locks;
+    private final List<FileChannel> otherLocks = new ArrayList<>();
+
+    public Journal(File gitletDir) {
+        this.gitletDir = gitletDir.getAbsoluteFile();
+        journalFile = join(this.gitletDir, "journal");
+        refsDir = join(this.gitletDir, "refs");
+    }
+
+    /**
+     * The journal of the repository in the current working directory.
+     */
+    public static Journal local() {
+        if (local == null) {
+            local = new Journal(Repository.GITLET_DIR);
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Records that the file is to have the contents.
+     */
+    public void write(File file, byte[] contents) {
+        changes.put(file.getAbsoluteFile(), contents);
+    }
+
+    public void write(File file, String contents) {
+        write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records that the file, or the directory if it is empty by then, is to be deleted.
+     */
+    public void delete(File file) {
+        changes.put(file.getAbsoluteFile(), null);
+    }
+
+    /**
+     * Returns the contents the file has with the recorded changes made, or null if it
+     * does not exist.
+     */
+    public byte[] read(File file) {
+        File key = file.getAbsoluteFile();
+        if (changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        if (snapshot != null && isState(key)) {
+            return snapshot.get(key);
+        }
+        return file.isFile() ? readContents(file) : null;
+    }
+
+    public String readString(File file) {
+        byte[] contents = read(file);
+        return contents == null ? null : new String(contents, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns if the file exists with the recorded changes made.
+     */
+    public boolean exists(File file) {
+        File key = file.getAbsoluteFile();
+        if (changes.containsKey(key)) {
+            return changes.get(key) != null;
+        }
+        if (snapshot != null && isState(key)) {
+            return snapshot.containsKey(key);
+        }
+        return file.isFile();
+    }
+
+    /**
+     * Returns the paths, relative to dir and separated by "/", of the files below
+     * dir with the recorded changes made, in order.
+     */
+    public List<String> names(File dir) {
+        Path base = dir.getAbsoluteFile().toPath();
+        TreeSet<String> result = new TreeSet<>();
+        if (snapshot != null && isState(dir.getAbsoluteFile())) {
+            for (File file : snapshot.keySet()) {
+                if (file.toPath().startsWith(base) && !file.toPath().equals(base)) {
+                    result.add(relative(base, file.toPath()));
+                }
+            }
+        } else if (dir.isDirectory()) {
+            try (Stream<Path> paths = Files.walk(base)) {
+                paths.filter(Files::isRegularFile)
+                        .forEach(path -> result.add(relative(base, path)));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        for (Map.Entry<File, byte[]> change : changes.entrySet()) {
+            Path path = change.getKey().toPath();
+            if (path.startsWith(base) && !path.equals(base)) {
+                if (change.getValue() == null) {
+                    result.remove(relative(base, path));
+                } else {
+                    result.add(relative(base, path));
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static String relative(Path base, Path path) {
+        return base.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Reports a file that was written directly, such as a new object, which has to
+     * be on disk before the changes are. A recorded deletion of it is dropped.
+     */
+    public void wrote(File file) {
+        written.add(file);
+        File key = file.getAbsoluteFile();
+        if (changes.containsKey(key) && changes.get(key) == null) {
+            changes.remove(key);
+        }
+    }
+
+    /**
+     * Makes the recorded changes, durably and all at once.
+     */
+    public void commit() {
+        if (changes.isEmpty()) {
+            written.clear();
+            return;
+        }
+        if (locks == 0) {
+            throw new IllegalStateException("changes made without the lock");
+        }
+        boolean sync = Config.local().getInt(Config.FSYNC, 1) != 0;
+        if (sync) {
+            Set<File> dirs = new LinkedHashSet<>();
+            for (File file : written) {
+                if (file.exists()) {
+                    fsync(file);
+                    dirs.add(file.getParentFile());
+                }
+            }
+            for (File dir : dirs) {
+                fsync(dir);
+            }
+        }
+        File tmp = join(gitletDir, "journal.tmp");
+        writeJournal(tmp, sync);
+        replace(tmp, journalFile);
+        if (sync) {
+            fsync(gitletDir);
+        }
+        apply(changes, sync);
+        journalFile.delete();
+        changes.clear();
+        written.clear();
+    }
+
+    /**
+     * Forgets the recorded changes, as when the command failed, and the snapshot.
+     */
+    public void abort() {
+        changes.clear();
+        written.clear();
+        snapshot = null;
+    }
+
+    /**
+     * Waits until no other process holds the lock of the repository, then takes it.
+     * Each lock or successful tryLock is ended by one unlock.
+     */
+    public void lock() {
+        if (locks == 0) {
+            acquire(true);
+        }
+        locks += 1;
+    }
+
+    /**
+     * Takes the lock if no other process holds it, and returns if it did.
+     */
+    public boolean tryLock() {
+        if (locks == 0 && !acquire(false)) {
+            return false;
+        }
+        locks += 1;
+        return true;
+    }
+
+    /**
+     * Also takes the lock of the repository in otherGitletDir, whose files this
+     * command changes, until the lock of this one is released. Returns false, taking
+     * nothing, if another process holds it.
+     */
+    public boolean lockOther(File otherGitletDir) {
+        try {
+            FileChannel channel = FileChannel.open(join(otherGitletDir, "lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                if (channel.tryLock() == null) {
+                    channel.close();
+                    return false;
+                }
+            } catch (OverlappingFileLockException excp) {
+                // This process holds it already: the other repository is this one.
+                channel.close();
+                return true;
+            }
+            otherLocks.add(channel);
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    public void unlock() {
+        locks -= 1;
+        if (locks > 0) {
+            return;
+        }
+        try {
+            for (FileChannel channel : otherLocks) {
+                channel.close();
+            }
+            otherLocks.clear();
+            if (lockChannel != null) {
+                // Closing the channel releases its lock.
+                lockChannel.close();
+                lockChannel = null;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private boolean acquire(boolean wait) {
+        if (!gitletDir.isDirectory()) {
+            // Nothing to guard yet, as for init.
+            return true;
+        }
+        try {
+            FileChannel channel = FileChannel.open(join(gitletDir, "lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock taken = wait ? channel.lock() : channel.tryLock();
+            if (taken == null) {
+                channel.close();
+                return false;
+            }
+            lockChannel = channel;
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads HEAD, Serialized and the refs as they are at one moment, for a command
+     * that reads without the lock; reads of them through this journal then return
+     * what was read here.
+     */
+    public void snapshot() {
+        Map<File, byte[]> seen = readState();
+        while (true) {
+            Map<File, byte[]> again = readState();
+            if (seen != null && again != null && sameState(seen, again)) {
+                break;
+            }
+            seen = again;
+        }
+        snapshot = seen;
+    }
+
+    /**
+     * Returns the state files and their contents, with a committed journal that has
+     * not been applied yet laid over them, or null if a file went away while they
+     * were read. The journal is read first: a command applying one deletes it only
+     * after the files are all written.
+     */
+    private Map<File, byte[]> readState() {
+        LinkedHashMap<File, byte[]> committed = journalFile.exists() ? readJournal() : null;
+        TreeMap<File, byte[]> state = new TreeMap<>();
+        List<Path> paths = new ArrayList<>();
+        paths.add(join(gitletDir, "HEAD").toPath());
+        paths.add(join(gitletDir, "Serialized").toPath());
+        try {
+            if (refsDir.isDirectory()) {
+                try (Stream<Path> refs = Files.walk(refsDir.toPath())) {
+                    refs.filter(Files::isRegularFile).forEach(paths::add);
+                }
+            }
+            for (Path path : paths) {
+                if (Files.exists(path)) {
+                    state.put(path.toFile(), Files.readAllBytes(path));
+                }
+            }
+        } catch (NoSuchFileException | UncheckedIOException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (committed != null) {
+            for (Map.Entry<File, byte[]> change : committed.entrySet()) {
+                if (!isState(change.getKey())) {
+                    continue;
+                } else if (change.getValue() == null) {
+                    state.remove(change.getKey());
+                } else {
+                    state.put(change.getKey(), change.getValue());
+                }
+            }
+        }
+        return state;
+    }
+
+    private static boolean sameState(Map<File, byte[]> a, Map<File, byte[]> b) {
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (Map.Entry<File, byte[]> entry : a.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), b.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns if the file is one that snapshot reads.
+     */
+    private boolean isState(File file) {
+        return file.toPath().startsWith(refsDir.toPath()) || file.equals(join(gitletDir, "HEAD"))
+                || file.equals(join(gitletDir, "Serialized"));
+    }
+
+    /**
+     * Finishes the changes of a command that was stopped after committing them, or
+     * throws away a journal that was not completely written.
+     */
+    public void recover() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        LinkedHashMap<File, byte[]> committed = readJournal();
+        if (committed != null) {
+            apply(committed, Config.local().getInt(Config.FSYNC, 1) != 0);
+        }
+        journalFile.delete();
+    }
+
+    private void apply(Map<File, byte[]> updates, boolean sync) {
+        Set<File> dirs = new LinkedHashSet<>();
+        File tmpDir = join(gitletDir, "tmp");
+        tmpDir.mkdirs();
+        for (Map.Entry<File, byte[]> update : updates.entrySet()) {
+            File file = update.getKey();
+            if (update.getValue() == null) {
+                // Deleting a file that is already gone does nothing, as a replay needs.
+                file.delete();
+            } else {
+                file.getParentFile().mkdirs();
+                File tmp = join(tmpDir, "journal-" + file.getName());
+                writeContents(tmp, update.getValue());
+                if (sync) {
+                    fsync(tmp);
+                }
+                replace(tmp, file);
+            }
+            dirs.add(file.getParentFile());
+        }
+        if (sync) {
+            for (File dir : dirs) {
+                if (dir.isDirectory()) {
+                    fsync(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes "GJNL", version, number of changes, then for each the path (relative to
+     * the .gitlet directory if it is inside it), and the length of the new contents,
+     * -1 for a deletion, followed by them, and last the CRC-32 of all of that.
+     */
+    private void writeJournal(File file, boolean sync) {
+        Path base = gitletDir.getAbsoluteFile().toPath();
+        List<byte[]> paths = new ArrayList<>();
+        int size = 12 + 8;
+        for (Map.Entry<File, byte[]> change : changes.entrySet()) {
+            Path path = change.getKey().toPath();
+            String name = path.startsWith(base) ? base.relativize(path).toString()
+                    : path.toString();
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            paths.add(utf8);
+            size += 4 + utf8.length + 4
+                    + (change.getValue() == null ? 0 : change.getValue().length);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putInt(changes.size());
+        int i = 0;
+        for (byte[] contents : changes.values()) {
+            byte[] path = paths.get(i++);
+            out.putInt(path.length).put(path);
+            if (contents == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(contents.length).put(contents);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putLong(crc.getValue());
+        out.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, out);
+            if (sync) {
+                channel.force(true);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the changes in the journal, or null if it is incomplete or damaged.
+     */
+    private LinkedHashMap<File, byte[]> readJournal() {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+        } catch (NoSuchFileException excp) {
+            // Applied and deleted by another command since it was seen.
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (in.remaining() < 12 + 8) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(in.array(), 0, in.limit() - 8);
+        if (crc.getValue() != in.getLong(in.limit() - 8)
+                || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return null;
+        }
+        LinkedHashMap<File, byte[]> result = new LinkedHashMap<>();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] path = new byte[in.getInt()];
+            in.get(path);
+            File file = new File(new String(path, StandardCharsets.UTF_8));
+            if (!file.isAbsolute()) {
+                file = join(gitletDir, file.getPath());
+            }
+            int length = in.getInt();
+            byte[] contents = null;
+            if (length >= 0) {
+                contents = new byte[length];
+                in.get(contents);
+            }
+            result.put(file, contents);
+        }
+        return result;
+    }
+}
@@ -2,6 +2,8 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
 
 import static gitlet.Utils.*;
 
@@ -17,21 +19,87 @@ public class Main {
     public static final File stageSerialized = join(GITLET_DIR, "Serialized");
 
     public static Serialized serialized;
+
+    /**
+     * The commands that only read the repository, and so run without its lock.
+     */
+    private static final Set<String> READ_ONLY = Set.of("log", "global-log", "find", "status");
     /**
      * Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("daemon")) {
+            daemon(args);
+            return;
+        }
+        execute(args);
+    }
+
+    /**
+     * Runs the command in args, printing the message of the error that ends it,
+     * if any. The changes to refs and the staging area are only committed through
+     * the Journal if the command succeeds. A command that changes the repository
+     * holds its lock while it runs; one that only reads works on a snapshot.
+     */
+    public static void execute(String[] args) {
+        boolean writing = !readOnly(args);
+        if (writing) {
+            Journal.local().lock();
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } finally {
+            Journal.local().abort();
+            if (writing) {
+                Journal.local().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns if the command in args only reads the repository.
+     */
+    static boolean readOnly(String[] args) {
+        return args.length > 0 && READ_ONLY.contains(args[0]);
+    }
+
+    /**
+     * Serves commands from clients until stopped with daemon stop, or stops
+     * the daemon that is running.
+     */
+    private static void daemon(String[] args) {
+        try {
+            if (args.length == 2 && args[1].equals("stop")) {
+                Daemon.stop();
+            } else {
+                validateNumArgs(args, 1);
+                Daemon.serve();
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    private static void run(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw error("Please enter a command.");
+        }
+        if (readOnly(args)) {
+            Journal.local().snapshot();
+        } else {
+            Journal.local().recover();
         }
         //Get the serialized
-        if (stageSerialized.exists()) {
-            serialized = readObject(stageSerialized, Serialized.class);
+        byte[] stored = Journal.local().read(stageSerialized);
+        if (stored != null) {
+            serialized = MyUtils.deserialize(stored, Serialized.class);
         } else {
             serialized = new Serialized();
         }
+        byte[] loaded = serialize(serialized);
 
         String firstArg = args[0];
         switch (firstArg) {
@@ -44,8 +112,10 @@ public class Main {
                 }
                 break;
             case "add":
-                validateNumArgs(args, 2);
-                Repository.add(args[1]);
+                if (args.length < 2) {
+                    validateNumArgs(args, 2);
+                }
+                Repository.add(Arrays.asList(args).subList(1, args.length));
                 break;
             case "commit":
                 validateNumArgs(args, 2);
@@ -56,16 +126,39 @@ public class Main {
                 Repository.rm(args[1]);
                 break;
             case "log":
-                validateNumArgs(args, 1);
-                Repository.log();
+                Repository.log(Arrays.asList(args).subList(1, args.length));
                 break;
             case "global-log":
-                validateNumArgs(args, 1);
-                Repository.globalLog();
+                Repository.globalLog(Arrays.asList(args).subList(1, args.length));
                 break;
             case "find":
+                if (args.length < 2) {
+                    validateNumArgs(args, 2);
+                }
+                Repository.find(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "diff":
+                Repository.diff(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "add-remote":
+                validateNumArgs(args, 3);
+                Repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
                 validateNumArgs(args, 2);
-                Repository.find(args[1]);
+                Repository.rmRemote(args[1]);
+                break;
+            case "push":
+                validateNumArgs(args, 3);
+                Repository.push(args[1], args[2]);
+                break;
+            case "fetch":
+                validateNumArgs(args, 3);
+                Repository.fetch(args[1], args[2]);
+                break;
+            case "pull":
+                validateNumArgs(args, 3);
+                Repository.pull(args[1], args[2]);
                 break;
             case "status":
                 validateNumArgs(args, 1);
@@ -76,15 +169,13 @@ public class Main {
                 switch (args.length) {
                     case 3:
                         if (!args[1].equals("--")) {
-                            System.out.println("Incorrect operands.");
-                            System.exit(0);
+                            throw error("Incorrect operands.");
                         }
                         Repository.checkoutFileName(args[2]);
                         break;
                     case 4:
                         if (!args[2].equals("--")) {
-                            System.out.println("Incorrect operands.");
-                            System.exit(0);
+                            throw error("Incorrect operands.");
                         }
                         Repository.checkoutIdAndFileName(args[1], args[3]);
                         break;
@@ -92,9 +183,7 @@ public class Main {
                         Repository.checkoutBranchName(args[1]);
                         break;
                     default:
-                        System.out.println("Incorrect operands.");
-                        System.exit(0);
-                        break;
+                        throw error("Incorrect operands.");
                 }
                 break;
             case "branch":
@@ -113,17 +202,45 @@ public class Main {
                 validateNumArgs(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "repack":
+                validateNumArgs(args, 1);
+                Repository.repack();
+                break;
+            case "gc":
+                Repository.gc(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "fsck":
+                Repository.fsck(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "sparse-checkout":
+                Repository.sparseCheckout(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "config":
+                if (args.length == 2) {
+                    Repository.config(args[1], null);
+                } else {
+                    validateNumArgs(args, 3);
+                    Repository.config(args[1], args[2]);
+                }
+                break;
+            case "cache-stats":
+                validateNumArgs(args, 1);
+                Repository.cacheStats();
+                break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw error("No command with that name exists.");
+        }
+        byte[] saved = serialize(serialized);
+        if (!Arrays.equals(saved, loaded)) {
+            Journal.local().write(stageSerialized, saved);
         }
-        writeObject(stageSerialized, serialized);
+        Journal.local().commit();
+        StatCache.saveLocal();
     }
 
     public static void validateNumArgs(String[] args, int n) {
         if (args.length != n) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
     }
 }
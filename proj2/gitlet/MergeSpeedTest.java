@@ -0,0 +1,113 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Reports how fast Diff3 merges large files, as merge does for a file changed
+ *  on both branches.
+ *  Invoke as
+ *      java gitlet.MergeSpeedTest [LINES...]
+ *  For each count of LINES (default 10000, 100000 and 1000000), a source-like
+ *  file is generated, and two branches each change, insert and delete lines in
+ *  it every so often, some of them at the same places. The time to diff each
+ *  branch against the base and to merge all three is printed.
+ */
+public class MergeSpeedTest {
+
+    /** How many lines apart the edits of each branch are. */
+    private static final int EDIT_EVERY = 40;
+
+    /** Times merges of files with the numbers of lines in ARGS. */
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        if (args.length == 0) {
+            sizes.add(10000);
+            sizes.add(100000);
+            sizes.add(1000000);
+        } else {
+            for (String arg : args) {
+                sizes.add(Integer.parseInt(arg));
+            }
+        }
+        System.out.printf("%-10s %10s %12s %12s %12s %10s%n",
+                "lines", "MB", "diff ms", "merge ms", "lines/s", "conflicts");
+        for (int lines : sizes) {
+            timeMerge(lines);
+        }
+    }
+
+    /** Prints the time to merge two branches of a file of LINES lines. */
+    private static void timeMerge(int lines) {
+        Random random = new Random(61);
+        List<String> base = generateLines(lines, random);
+        byte[] baseBytes = join(base);
+        byte[] ours = join(edit(base, 0, random));
+        byte[] theirs = join(edit(base, EDIT_EVERY / 2, random));
+
+        long start = System.nanoTime();
+        int[][] ids = Diff.intern(new Diff.Lines(baseBytes), new Diff.Lines(ours));
+        Diff.match(ids[0], ids[1]);
+        long diffNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Diff3.Result result = Diff3.merge(baseBytes, ours, theirs);
+        long mergeNanos = System.nanoTime() - start;
+
+        System.out.printf("%-10d %10.1f %12.1f %12.1f %12.0f %10d%n", lines,
+                baseBytes.length / 1e6, diffNanos / 1e6, mergeNanos / 1e6,
+                lines / (mergeNanos / 1e9), result.getConflicts());
+    }
+
+    /** Returns a copy of BASE with a line changed, inserted or deleted every
+     *  EDIT_EVERY lines, starting at line FIRST. One edit in ten is made at
+     *  line 0 of its stretch whatever FIRST is, so the two branches overlap. */
+    private static List<String> edit(List<String> base, int first, Random random) {
+        List<String> result = new ArrayList<>(base.size());
+        for (int i = 0; i < base.size(); i++) {
+            int at = i % EDIT_EVERY;
+            boolean shared = (i / EDIT_EVERY) % 10 == 0;
+            if (at != first && !(shared && at == 0)) {
+                result.add(base.get(i));
+                continue;
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    result.add("changed " + first + " " + base.get(i));
+                    break;
+                case 1:
+                    result.add("inserted " + first + " " + i + "\n");
+                    result.add(base.get(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /** Returns LINES lines of text resembling source code. */
+    private static List<String> generateLines(int lines, Random random) {
+        String[] words = {"public", "static", "void", "return", "int", "String",
+            "commit", "blob", "if", "else", "for", "new", "null", "id", "name",
+            "file", "=", "(", ")", "{", "}", ";", "//", "the", "of"};
+        List<String> result = new ArrayList<>(lines);
+        for (int n = 0; n < lines; n++) {
+            StringBuilder line = new StringBuilder();
+            int length = 3 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                line.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            result.add(line.append('\n').toString());
+        }
+        return result;
+    }
+
+    private static byte[] join(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        return text.toString().getBytes();
+    }
+}
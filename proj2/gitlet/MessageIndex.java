@@ -0,0 +1,410 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * An index of commit messages, kept in .gitlet/objects/message-index, so that find
+ * reads only the commits that may match instead of every commit.
+ * <p>
+ * Each commit is indexed under the key of its whole message and under the key of
+ * each distinct token of it. A token is a run of letters and digits, lowercased.
+ * A key is the first 8 bytes of the SHA-1 of "m:" followed by the message, or of
+ * "t:" followed by the token.
+ * <p>
+ * The file is a hash table with chaining: "GMIX", version, number of buckets and
+ * number of commits indexed, then one 8-byte offset per bucket, then 36-byte
+ * records. Each record holds the offset of the next record in its bucket, a key
+ * and a commit id. A bucket's offset points at the newest record of its chain,
+ * and 0 ends a chain. A new commit appends its records and relinks the buckets in
+ * place. Once there are more than LOAD records per bucket, the file is rewritten
+ * with four times as many buckets, so a lookup reads about LOAD records besides
+ * its matches. Keys can collide, so callers check the messages of the commits
+ * they get.
+ * <p>
+ * An index that is missing, or that holds fewer commits than the CommitIndex (a
+ * repository made before the index existed), is rebuilt from the object store on
+ * first use.
+ */
+public class MessageIndex {
+
+    private static final int MAGIC = 0x474d4958;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int ID_BYTES = 20;
+    private static final int RECORD = 8 + 8 + ID_BYTES;
+    private static final int MIN_BUCKETS = 1024;
+
+    /**
+     * The most records per bucket before the table grows.
+     */
+    private static final int LOAD = 8;
+
+    private static MessageIndex local;
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final File indexFile;
+
+    public MessageIndex(File gitletDir, ObjectStore store) {
+        this.gitletDir = gitletDir;
+        this.store = store;
+        indexFile = join(gitletDir, "objects", "message-index");
+    }
+
+    /**
+     * The message index of the repository in the current working directory.
+     */
+    public static MessageIndex local() {
+        if (local == null) {
+            local = new MessageIndex(Repository.GITLET_DIR, ObjectStore.local());
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Returns the ids of the commits that may have exactly the message, or null,
+     * meaning every commit, if the index is behind and cannot be brought up to date.
+     */
+    public Set<String> withMessage(String message) {
+        if (!ensureComplete()) {
+            return null;
+        }
+        return lookup(messageKey(message));
+    }
+
+    /**
+     * Returns the ids of the commits whose messages have all the tokens, or null,
+     * meaning every commit, if there are no tokens or the index is behind and cannot
+     * be brought up to date.
+     */
+    public Set<String> withTokens(Collection<String> tokens) {
+        if (tokens.isEmpty() || !ensureComplete()) {
+            return null;
+        }
+        Set<String> result = null;
+        for (String token : tokens) {
+            Set<String> ids = lookup(tokenKey(token));
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(ids);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes a new commit, growing the table first if it is full.
+     */
+    public void add(Commit commit) {
+        byte[] id = hexToBytes(commit.getId());
+        List<Long> keys = new ArrayList<>(keys(commit.getMessage()));
+        // Set when the table is to be written anew, which is done once it is closed.
+        List<Record> rewrite = null;
+        int rewriteCommits = 1;
+        int rewriteBuckets = MIN_BUCKETS;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = readAt(channel, 0, HEADER);
+            if (channel.size() < HEADER || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION) {
+                rewrite = new ArrayList<>();
+            } else {
+                int buckets = header.getInt(8);
+                int commits = header.getInt(12);
+                long table = HEADER;
+                long records = (channel.size() - table - 8L * buckets) / RECORD;
+                if (records + keys.size() > (long) buckets * LOAD) {
+                    rewrite = readRecords(channel, buckets, records);
+                    rewriteCommits = commits + 1;
+                    rewriteBuckets = buckets * 4;
+                } else {
+                    long end = channel.size();
+                    for (long key : keys) {
+                        long slot = table + 8L * bucket(key, buckets);
+                        long next = readAt(channel, slot, 8).getLong(0);
+                        ByteBuffer record = ByteBuffer.allocate(RECORD);
+                        record.putLong(next).putLong(key).put(id).flip();
+                        writeAt(channel, end, record);
+                        writeAt(channel, slot, ByteBuffer.allocate(8).putLong(0, end));
+                        end += RECORD;
+                    }
+                    writeAt(channel, 12, ByteBuffer.allocate(4).putInt(0, commits + 1));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (rewrite != null) {
+            for (long key : keys) {
+                rewrite.add(new Record(key, id));
+            }
+            write(rewrite, rewriteCommits, rewriteBuckets);
+        }
+    }
+
+    /**
+     * Rebuilds the index from every commit in the CommitIndex.
+     */
+    public void rebuild() {
+        List<String> ids = CommitIndex.local().ids();
+        List<Record> records = new ArrayList<>();
+        for (String id : ids) {
+            Commit commit = Commit.decode(store.read(ObjectStore.COMMIT, id));
+            for (long key : keys(commit.getMessage())) {
+                records.add(new Record(key, hexToBytes(id)));
+            }
+        }
+        int buckets = MIN_BUCKETS;
+        while ((long) buckets * LOAD < records.size()) {
+            buckets *= 4;
+        }
+        write(records, ids.size(), buckets);
+    }
+
+    /**
+     * Returns the tokens of text: its runs of letters and digits, lowercased.
+     */
+    public static Set<String> tokens(String text) {
+        return tokens(text, false);
+    }
+
+    /**
+     * Returns the tokens that any message containing text also has: those of its
+     * tokens that do not touch either end of it, since those may be parts of longer
+     * tokens of the message.
+     */
+    public static Set<String> innerTokens(String text) {
+        return tokens(text, true);
+    }
+
+    /**
+     * Returns tokens that every message with a match of the regular expression has:
+     * the inner tokens of the runs of literal characters outside its groups and
+     * classes. Returns none for expressions with alternatives or inline flags, which
+     * this does not follow.
+     */
+    public static Set<String> patternTokens(String regex) {
+        Set<String> result = new LinkedHashSet<>();
+        if (regex.indexOf('|') >= 0 || regex.contains("(?")) {
+            return result;
+        }
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+                continue;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(depth - 1, 0);
+            } else if (depth > 0) {
+                continue;
+            } else if (c == '?' || c == '*' || c == '{') {
+                // The character before may not be there at all.
+                run.setLength(Math.max(run.length() - 1, 0));
+            } else if (".^$+}".indexOf(c) < 0) {
+                run.append(c);
+                continue;
+            }
+            result.addAll(innerTokens(run.toString()));
+            run.setLength(0);
+        }
+        result.addAll(innerTokens(run.toString()));
+        return result;
+    }
+
+    private static Set<String> tokens(String text, boolean inner) {
+        Set<String> result = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                if (!inner || (start > 0 && i < text.length())) {
+                    result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds the index if it lacks commits, returning false if it does and the lock
+     * is held by another command, as when a command that only reads overlaps one
+     * that is adding a commit.
+     */
+    private boolean ensureComplete() {
+        if (indexFile.exists() && indexedCommits() == CommitIndex.local().size()) {
+            return true;
+        }
+        if (!Journal.local().tryLock()) {
+            return false;
+        }
+        try {
+            rebuild();
+        } finally {
+            Journal.local().unlock();
+        }
+        return true;
+    }
+
+    private int indexedCommits() {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readAt(channel, 0, HEADER);
+            if (channel.size() < HEADER || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION) {
+                return -1;
+            }
+            return header.getInt(12);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the ids of the records with the key.
+     */
+    private Set<String> lookup(long key) {
+        Set<String> result = new HashSet<>();
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            int buckets = readAt(channel, 8, 4).getInt(0);
+            long offset = readAt(channel, HEADER + 8L * bucket(key, buckets), 8).getLong(0);
+            byte[] id = new byte[ID_BYTES];
+            while (offset != 0) {
+                ByteBuffer record = readAt(channel, offset, RECORD);
+                if (record.getLong(8) == key) {
+                    record.get(16, id);
+                    result.add(bytesToHex(id));
+                }
+                offset = record.getLong(0);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    private static List<Record> readRecords(FileChannel channel, int buckets, long count)
+            throws IOException {
+        long start = HEADER + 8L * buckets;
+        ByteBuffer all = readAt(channel, start, (int) (count * RECORD));
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[ID_BYTES];
+            all.get(i * RECORD + 16, id);
+            records.add(new Record(all.getLong(i * RECORD + 8), id));
+        }
+        return records;
+    }
+
+    /**
+     * Replaces the index file with one of the records, chained in a table with the
+     * number of buckets.
+     */
+    private void write(List<Record> records, int commits, int buckets) {
+        long tableEnd = HEADER + 8L * buckets;
+        ByteBuffer out = ByteBuffer.allocate((int) (tableEnd + (long) records.size() * RECORD));
+        out.putInt(MAGIC).putInt(VERSION).putInt(buckets).putInt(commits);
+        long offset = tableEnd;
+        for (Record record : records) {
+            int slot = HEADER + 8 * bucket(record.key, buckets);
+            out.putLong((int) offset, out.getLong(slot));
+            out.putLong((int) offset + 8, record.key);
+            out.put((int) offset + 16, record.id);
+            out.putLong(slot, offset);
+            offset += RECORD;
+        }
+        File tmp = join(gitletDir, "objects", "message-index.tmp");
+        writeContents(tmp, out.array());
+        replace(tmp, indexFile);
+    }
+
+    private static Set<Long> keys(String message) {
+        Set<Long> keys = new LinkedHashSet<>();
+        keys.add(messageKey(message));
+        for (String token : tokens(message)) {
+            keys.add(tokenKey(token));
+        }
+        return keys;
+    }
+
+    private static long messageKey(String message) {
+        return key("m:" + message);
+    }
+
+    private static long tokenKey(String token) {
+        return key("t:" + token);
+    }
+
+    private static long key(String s) {
+        return ByteBuffer.wrap(hexToBytes(sha1(s))).getLong();
+    }
+
+    private static int bucket(long key, int buckets) {
+        return (int) Long.remainderUnsigned(key, buckets);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void writeAt(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static class Record {
+        private final long key;
+        private final byte[] id;
+
+        Record(long key, byte[] id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+}
@@ -1,49 +1,318 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import static gitlet.Utils.*;
 public class MyUtils {
 
     /**
-     * Writes the contents of src to tar. (String)
+     * The size of the buffer that files are hashed and copied through, so that
+     * no file is ever held in memory as a whole.
      */
-    public static void writeContentFromFile(File src, File tar) {
-        writeContents(tar, readContentsAsString(src));
-    }
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * Below this many items, starting threads costs more than it saves.
+     */
+    private static final int PARALLEL_MIN = 8;
+
+    /**
+     * The format of the dates log shows. Unlike SimpleDateFormat, it is made once.
+     */
+    private static final DateTimeFormatter LOG_DATE =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
 
     /**
      * Copy a file to the target position.
      */
     public static void copy(File src, File tar) {
         if (!tar.exists() && src.exists()) {
-            writeContentFromFile(src, tar);
+            try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+                 FileChannel out = openForWrite(tar)) {
+                copyRange(in, 0, in.size(), out);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens FILE for writing, creating or truncating it.
+     */
+    public static FileChannel openForWrite(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Copies LENGTH bytes of IN, starting at OFFSET, to the current position of OUT.
+     * The bytes are moved by the kernel with transferTo and never pass through
+     * the Java heap.
+     */
+    public static void copyRange(FileChannel in, long offset, long length, FileChannel out)
+            throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = in.transferTo(offset + done, length - done, out);
+            if (n <= 0 && offset + done >= in.size()) {
+                throw new IOException("unexpected end of file");
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of BUFFER to OUT.
+     */
+    public static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the UTF-8 bytes of S to OUT.
+     */
+    public static void writeString(FileChannel out, String s) throws IOException {
+        writeFully(out, ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns the SHA-1 of the contents of FILE followed by the strings in SUFFIXES,
+     * the same value as Utils.sha1(readContents(file), suffixes...), reading FILE
+     * CHUNK_SIZE bytes at a time.
+     */
+    public static String sha1File(File file, String... suffixes) {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+            for (String suffix : suffixes) {
+                md.update(suffix.getBytes(StandardCharsets.UTF_8));
+            }
+            return bytesToHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
         }
     }
 
     /**
      * Moves a file to the target position.
      * Deletes the source file.
+     * This is a rename when both are on the same file system, and a copy otherwise.
      */
     public static void move(File src, File tar) {
-        copy(src, tar);
+        if (!tar.exists() && src.exists()) {
+            try {
+                Files.move(src.toPath(), tar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (IOException excp) {
+                copy(src, tar);
+            }
+        }
         src.delete();
     }
 
+    /**
+     * Makes tar a hard link to src, or a copy of it where links are not supported.
+     * Only for files that are never modified in place, such as stored objects.
+     */
+    public static void link(File src, File tar) {
+        if (!tar.exists() && src.exists()) {
+            try {
+                Files.createLink(tar.toPath(), src.toPath());
+            } catch (IOException | UnsupportedOperationException excp) {
+                copy(src, tar);
+            }
+        }
+    }
+
+    /**
+     * Replaces tar with src in one step, so that nobody sees a half-written tar.
+     */
+    public static void replace(File src, File tar) {
+        try {
+            try {
+                Files.move(src.toPath(), tar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException excp) {
+                Files.move(src.toPath(), tar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Forces the contents of the file, or the entries of the directory, to disk.
+     * Systems that cannot open a directory to sync it are left to flush it themselves.
+     */
+    public static void fsync(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns an object of type T deserialized from CONTENTS, as Utils.readObject does
+     * for a file.
+     */
+    public static <T extends Serializable> T deserialize(byte[] contents,
+                                                         Class<T> expectedClass) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(contents))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns CONTENTS deflated at LEVEL (1-9).
+     */
+    public static byte[] deflate(byte[] contents, int level) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(result, deflater)) {
+            out.write(contents);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Returns the inflated CONTENTS of a deflate stream.
+     */
+    public static byte[] inflate(byte[] contents) {
+        try (InflaterInputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(contents))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Converts a hexadecimal id into its bytes, two digits per byte.
+     */
+    public static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Converts bytes into a lowercase hexadecimal id.
+     */
+    public static String bytesToHex(byte[] bytes) {
+        char[] digits = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            digits[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            digits[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Calls action with every index in 0..count-1, on the workers of a ForkJoinPool
+     * of at most threads threads, so that no more than threads files are being read
+     * or written at once. Small counts run on the calling thread.
+     */
+    public static void parallelFor(int count, int threads, IntConsumer action) {
+        if (count < PARALLEL_MIN || threads <= 1) {
+            for (int i = 0; i < count; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.min(threads, count));
+        try {
+            pool.invoke(new RangeTask(action, 0, count));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs the action over from..to, halving the range until it is small enough
+     * for one task.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int LEAF = 4;
+        private final IntConsumer action;
+        private final int from;
+        private final int to;
+
+        RangeTask(IntConsumer action, int from, int to) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(action, from, mid), new RangeTask(action, mid, to));
+        }
+    }
+
     /**
      * Prints date as required.
      */
     public static void printDate(Date date) {
-        System.out.println("Date: " + dateToTimeStamp(date));
+        System.out.println("Date: " + formatDate(date));
     }
 
-    private static String dateToTimeStamp(Date date) {
-        DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-        return dateFormat.format(date);
+    /**
+     * Returns the date as log shows it, e.g. Thu Jan 1 00:00:00 1970 +0000.
+     */
+    public static String formatDate(Date date) {
+        return LOG_DATE.format(date.toInstant().atZone(ZoneId.systemDefault()));
     }
 
 }
@@ -0,0 +1,1084 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * Stores the commits, trees and blobs of a repository.
+ * <p>
+ * Fresh objects are written loose, one file per object, under objects/commits,
+ * objects/trees and objects/blobs. If core.compression is set, they are deflated at write time and
+ * their file names end in ".z". A new version of a tracked file is stored as a
+ * delta against the version it replaces when that is much smaller than the file;
+ * such a blob's file name ends in ".d", and it holds the id of the base (20 bytes)
+ * followed by the delta. Chains of deltas are at most core.deltaDepth long, so a
+ * read resolves a bounded number of bases. The repack command moves every object into one
+ * packfile under objects/pack, so that a read costs a binary search in the pack
+ * index and one positioned read instead of a directory lookup and an open per object.
+ * <p>
+ * The pack layout is:
+ * <p>
+ * pack-[sha].pack: "GPCK", version, count, then for each object its type (1 byte),
+ * id (20 bytes), length (8 bytes) and contents.
+ * The high bit of the type is set if the contents are deflated, the next one if
+ * they are a base id and a delta.
+ * <p>
+ * pack-[sha].idx: "GIDX", version, count, 256 fan-out counts, then for each object,
+ * sorted by id: id (20 bytes), type (1 byte), offset of the contents (8 bytes),
+ * length (8 bytes).
+ */
+public class ObjectStore {
+
+    public static final byte COMMIT = 1;
+    public static final byte BLOB = 2;
+    public static final byte TREE = 3;
+
+    /**
+     * Set in the type of a pack entry whose contents are deflated.
+     * A deflated loose object has DEFLATED_SUFFIX at the end of its file name.
+     */
+    private static final byte DEFLATED = (byte) 0x80;
+    private static final byte DELTA = 0x40;
+    private static final byte TYPE_MASK = 0x0f;
+    private static final String DEFLATED_SUFFIX = ".z";
+    private static final String DELTA_SUFFIX = ".d";
+
+    private static final int DEFAULT_DELTA_DEPTH = 10;
+    private static final int DEFAULT_DELTA_MAX_SIZE = 16 << 20;
+
+    private static final int PACK_MAGIC = 0x4750434b;
+    private static final int IDX_MAGIC = 0x47494458;
+    private static final int VERSION = 1;
+    private static final int ID_BYTES = 20;
+    private static final int PACK_HEADER = 12;
+    private static final int PACK_ENTRY_HEADER = 1 + ID_BYTES + 8;
+    private static final int IDX_HEADER = 12 + 256 * 4;
+    private static final int IDX_ENTRY = ID_BYTES + 1 + 8 + 8;
+
+    private static ObjectStore local;
+
+    private final File commitsDir;
+    private final File blobsDir;
+    private final File treesDir;
+    private final File packDir;
+    private final File tmpDir;
+
+    /**
+     * The deflate level new objects are written with, 0 for none.
+     */
+    private final int compression;
+
+    /**
+     * The longest delta chain new blobs may end, and the largest blob that is
+     * stored as a delta.
+     */
+    private final int deltaDepth;
+    private final int deltaMaxSize;
+
+    /**
+     * Whether a new loose object is forced to disk before it is renamed into place.
+     */
+    private final boolean sync;
+
+    /**
+     * The packs found under objects/pack, loaded on first use, and the modification
+     * time of objects/pack when they were listed.
+     */
+    private List<Pack> packs;
+    private long packsListed;
+
+    public ObjectStore(File gitletDir) {
+        commitsDir = join(gitletDir, "objects", "commits");
+        blobsDir = join(gitletDir, "objects", "blobs");
+        treesDir = join(gitletDir, "objects", "trees");
+        packDir = join(gitletDir, "objects", "pack");
+        tmpDir = join(gitletDir, "tmp");
+        Config config = new Config(gitletDir);
+        compression = config.getInt(Config.COMPRESSION, 0, 0, 9);
+        deltaDepth = config.getInt(Config.DELTA_DEPTH, DEFAULT_DELTA_DEPTH, 0, Integer.MAX_VALUE);
+        deltaMaxSize = config.getInt(Config.DELTA_MAX_SIZE, DEFAULT_DELTA_MAX_SIZE,
+                0, Integer.MAX_VALUE);
+        sync = config.getInt(Config.FSYNC, 1) != 0;
+    }
+
+    /**
+     * The object store of the repository in the current working directory.
+     */
+    public static ObjectStore local() {
+        if (local == null) {
+            local = new ObjectStore(Repository.GITLET_DIR);
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    private File looseDir(byte type) {
+        if (type == COMMIT) {
+            return commitsDir;
+        }
+        return type == TREE ? treesDir : blobsDir;
+    }
+
+    /**
+     * Returns if the object with the id is stored, loose or packed.
+     */
+    public boolean has(byte type, String id) {
+        return locate(type, id) != null;
+    }
+
+    /**
+     * Returns the contents of the object with the id, or null if it is not stored.
+     */
+    public byte[] read(byte type, String id) {
+        Stored stored = locate(type, id);
+        if (stored == null) {
+            return null;
+        }
+        byte[] contents;
+        try {
+            contents = stored.readAll();
+        } catch (IllegalArgumentException excp) {
+            if (!stored.gone()) {
+                throw excp;
+            }
+            // Packed by a repack in another process, which deleted this copy, since
+            // it was found.
+            packs = null;
+            return read(type, id);
+        }
+        if ((stored.type & DELTA) == 0) {
+            return contents;
+        }
+        String baseId = bytesToHex(Arrays.copyOf(contents, ID_BYTES));
+        byte[] base = read(type, baseId);
+        if (base == null) {
+            throw new IllegalArgumentException("missing delta base " + baseId);
+        }
+        return Delta.apply(base, Arrays.copyOfRange(contents, ID_BYTES, contents.length));
+    }
+
+    /**
+     * Returns the contents of the object with the id, or null if they are longer than
+     * core.deltaMaxSize. Whole and deflated objects are read no further than one byte
+     * past it; a blob is only stored as a delta if it was within it.
+     */
+    public byte[] readSmall(byte type, String id) {
+        Stored stored = locate(type, id);
+        if (stored == null) {
+            throw new IllegalArgumentException("missing object " + id);
+        }
+        byte[] contents;
+        if ((stored.type & DELTA) != 0) {
+            contents = read(type, id);
+        } else if ((stored.type & DEFLATED) == 0 && stored.length > deltaMaxSize) {
+            return null;
+        } else {
+            try (InputStream in = stored.open()) {
+                contents = in.readNBytes((int) Math.min(deltaMaxSize + 1L, Integer.MAX_VALUE));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return contents.length > deltaMaxSize ? null : contents;
+    }
+
+    /**
+     * Returns the id of the object the object with the id is stored as a delta
+     * against, or null if it is stored whole.
+     */
+    public String deltaBase(byte type, String id) {
+        Stored stored = locate(type, id);
+        return stored == null ? null : stored.baseId();
+    }
+
+    /**
+     * Returns the number of deltas that have to be applied to read the object.
+     */
+    private int deltaDepth(byte type, String id) {
+        int depth = 0;
+        for (String base = deltaBase(type, id); base != null; base = deltaBase(type, base)) {
+            depth += 1;
+        }
+        return depth;
+    }
+
+    /**
+     * Writes a new loose object, deflated if the repository is configured to and
+     * deflating makes it smaller.
+     */
+    public void write(byte type, String id, byte[] contents) {
+        if (type == TREE) {
+            // Repositories made before trees existed have no directory for them.
+            treesDir.mkdirs();
+        }
+        String suffix = "";
+        if (compression > 0) {
+            byte[] deflated = deflate(contents, compression);
+            if (deflated.length < contents.length) {
+                contents = deflated;
+                suffix = DEFLATED_SUFFIX;
+            }
+        }
+        File tmp = tempFile(id);
+        writeContents(tmp, contents);
+        install(tmp, join(looseDir(type), id + suffix));
+    }
+
+    /**
+     * Returns a new empty file in the tmp directory, for an object to be written to
+     * before it is installed.
+     */
+    private File tempFile(String id) {
+        tmpDir.mkdirs();
+        try {
+            return Files.createTempFile(tmpDir.toPath(), id, ".tmp").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Renames the fully written tmp to the loose object file, after forcing it to
+     * disk, so that neither a crash nor a concurrent reader leaves part of an object
+     * where has() would take it for a whole one.
+     */
+    private void install(File tmp, File file) {
+        if (sync) {
+            fsync(tmp);
+        }
+        move(tmp, file);
+        Journal.local().wrote(file);
+    }
+
+    /**
+     * Moves the file src into the store as the loose object with the id.
+     * The source is deleted either way. When objects are compressed, src is
+     * deflated into a temporary file a chunk at a time, which is renamed into the
+     * store if it is smaller; otherwise src itself is renamed in.
+     */
+    public void moveIn(byte type, String id, File src) {
+        moveIn(type, id, src, null);
+    }
+
+    /**
+     * Moves the file src into the store like moveIn(type, id, src), but first tries
+     * to store it as a delta against the object baseId, an older version of it.
+     * The delta is kept if it is less than half the size of src and the chain it
+     * ends is no longer than core.deltaDepth.
+     */
+    public void moveIn(byte type, String id, File src, String baseId) {
+        if (!has(type, id)) {
+            if (baseId != null && writeDelta(type, id, src, baseId)) {
+                src.delete();
+                return;
+            }
+            if (compression > 0) {
+                File deflated = tempFile(id);
+                deflateFile(src, deflated, compression);
+                if (deflated.length() < src.length()) {
+                    install(deflated, join(looseDir(type), id + DEFLATED_SUFFIX));
+                    src.delete();
+                    return;
+                }
+                deflated.delete();
+            }
+            install(src, join(looseDir(type), id));
+        }
+        src.delete();
+    }
+
+    /**
+     * Stores the file src like moveIn(type, id, src, baseId), but leaves src in place:
+     * a hard link to it is moved in instead, where links are supported.
+     */
+    public void copyIn(byte type, String id, File src, String baseId) {
+        if (has(type, id)) {
+            return;
+        }
+        tmpDir.mkdirs();
+        File tmp = join(tmpDir, id);
+        tmp.delete();
+        link(src, tmp);
+        moveIn(type, id, tmp, baseId);
+    }
+
+    /**
+     * Writes src as a delta against the object baseId. Returns false, writing
+     * nothing, if that would not pay off or would make the chain too long.
+     */
+    private boolean writeDelta(byte type, String id, File src, String baseId) {
+        if (deltaDepth <= 0 || src.length() > deltaMaxSize || baseId.equals(id)) {
+            return false;
+        }
+        Stored stored = locate(type, baseId);
+        if (stored == null || stored.length > deltaMaxSize
+                || deltaDepth(type, baseId) + 1 > deltaDepth) {
+            return false;
+        }
+        byte[] base = read(type, baseId);
+        if (base.length > deltaMaxSize) {
+            return false;
+        }
+        byte[] target = readContents(src);
+        byte[] delta = Delta.create(base, target);
+        if (ID_BYTES + delta.length >= target.length / 2) {
+            return false;
+        }
+        File tmp = tempFile(id);
+        writeContents(tmp, hexToBytes(baseId), delta);
+        install(tmp, join(looseDir(type), id + DELTA_SUFFIX));
+        return true;
+    }
+
+    /**
+     * Writes the contents of the object with the id to the file tar.
+     */
+    public void copyTo(byte type, String id, File tar) {
+        try (FileChannel out = openForWrite(tar)) {
+            writeTo(type, id, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Puts the blob with the id into the working directory as the file tar.
+     * The contents go to a temporary file with a kernel-side copy, which is then
+     * renamed over tar, so tar is never seen half-written.
+     */
+    public void materialize(String id, File tar) {
+        tmpDir.mkdirs();
+        File tmp = join(tmpDir, id);
+        copyTo(BLOB, id, tmp);
+        replace(tmp, tar);
+    }
+
+    /**
+     * Puts a copy of the object with the id at tar inside the .gitlet directory,
+     * as a hard link to the loose object where possible.
+     */
+    public void linkTo(byte type, String id, File tar) {
+        File loose = join(looseDir(type), id);
+        if (loose.exists()) {
+            link(loose, tar);
+        } else {
+            copyTo(type, id, tar);
+        }
+    }
+
+    /**
+     * Streams the contents of the object with the id to the current position of out.
+     * Stored bytes are copied by the kernel; deflated ones are inflated a chunk at
+     * a time, and deltas are applied in memory.
+     */
+    public void writeTo(byte type, String id, FileChannel out) throws IOException {
+        Stored stored = locate(type, id);
+        if (stored == null) {
+            throw new IllegalArgumentException("missing object " + id);
+        }
+        if ((stored.type & DELTA) != 0) {
+            writeFully(out, ByteBuffer.wrap(read(type, id)));
+            return;
+        }
+        if ((stored.type & DEFLATED) == 0) {
+            stored.transferTo(out);
+            return;
+        }
+        try (InputStream in = stored.open()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                writeFully(out, ByteBuffer.wrap(buffer, 0, n));
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-1 of the contents of the object with the id followed by the
+     * strings in suffixes, the same value as Utils.sha1(read(type, id), suffixes...).
+     * Whole and deflated objects are read a chunk at a time; a delta, whose base is
+     * no larger than core.deltaMaxSize, is applied into a temporary file first.
+     */
+    public String hash(byte type, String id, String... suffixes) {
+        Stored stored = locate(type, id);
+        if (stored == null) {
+            throw new IllegalArgumentException("missing object " + id);
+        }
+        if ((stored.type & DELTA) != 0) {
+            File tmp = tempFile(id);
+            try {
+                copyTo(type, id, tmp);
+                return sha1File(tmp, suffixes);
+            } finally {
+                tmp.delete();
+            }
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            stored.digest(md);
+            for (String suffix : suffixes) {
+                md.update(suffix.getBytes(StandardCharsets.UTF_8));
+            }
+            return bytesToHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * Finds where the object with the id is stored, or returns null.
+     */
+    private Stored locate(byte type, String id) {
+        File loose = join(looseDir(type), id);
+        if (loose.exists()) {
+            return new Stored(type, loose, null, 0, loose.length());
+        }
+        File deflated = join(looseDir(type), id + DEFLATED_SUFFIX);
+        if (deflated.exists()) {
+            return new Stored((byte) (type | DEFLATED), deflated, null, 0, deflated.length());
+        }
+        File delta = join(looseDir(type), id + DELTA_SUFFIX);
+        if (delta.exists()) {
+            return new Stored((byte) (type | DELTA), delta, null, 0, delta.length());
+        }
+        Stored packed = findPacked(type, id);
+        if (packed == null && packDir.lastModified() != packsListed) {
+            // Another process may have packed it since the packs were listed.
+            packs = null;
+            packed = findPacked(type, id);
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the ids of all stored objects of the type in lexicographic order.
+     */
+    public List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        List<String> loose = plainFilenamesIn(looseDir(type));
+        if (loose != null) {
+            for (String name : loose) {
+                result.add(looseId(name));
+            }
+        }
+        for (Pack pack : packs()) {
+            for (int i = 0; i < pack.count; i++) {
+                if ((pack.type(i) & TYPE_MASK) == type) {
+                    result.add(bytesToHex(pack.id(i)));
+                }
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /**
+     * Returns the id of the loose object stored in the file with the name.
+     */
+    private static String looseId(String name) {
+        if (name.endsWith(DEFLATED_SUFFIX)) {
+            return name.substring(0, name.length() - DEFLATED_SUFFIX.length());
+        }
+        if (name.endsWith(DELTA_SUFFIX)) {
+            return name.substring(0, name.length() - DELTA_SUFFIX.length());
+        }
+        return name;
+    }
+
+    /**
+     * Returns the type, with its flags, of the loose object stored in the file with the name.
+     */
+    private static byte looseType(byte type, String name) {
+        if (name.endsWith(DEFLATED_SUFFIX)) {
+            return (byte) (type | DEFLATED);
+        }
+        if (name.endsWith(DELTA_SUFFIX)) {
+            return (byte) (type | DELTA);
+        }
+        return type;
+    }
+
+    /**
+     * Moves every loose object and every existing pack into a single new pack,
+     * then deletes the loose files and the old packs. Deltas are kept, except those
+     * at the end of a chain longer than core.deltaDepth, which are stored whole.
+     * Commits still in the legacy Java serialization format are rewritten in the
+     * binary one.
+     * Returns the number of objects in the new pack.
+     */
+    public int repack() {
+        // id -> source, sorted by id, which is also the order of the index.
+        TreeMap<String, Stored> sources = new TreeMap<>();
+        for (Pack pack : packs()) {
+            for (int i = 0; i < pack.count; i++) {
+                sources.put(bytesToHex(pack.id(i)), packed(pack, i));
+            }
+        }
+        sources.putAll(loose());
+        return repack(sources);
+    }
+
+    /**
+     * Writes the sources into a single new pack, then deletes every old pack and the
+     * loose files among the sources, as repack describes.
+     */
+    private int repack(TreeMap<String, Stored> sources) {
+        HashMap<String, Stored> rewritten = new HashMap<>();
+        for (Map.Entry<String, Stored> entry : sources.entrySet()) {
+            byte type = (byte) (entry.getValue().type & TYPE_MASK);
+            if (type == COMMIT) {
+                byte[] contents = entry.getValue().readAll();
+                if (!Commit.isEncoded(contents)) {
+                    rewritten.put(entry.getKey(),
+                            new Stored(COMMIT, Commit.decode(contents).encode()));
+                }
+            } else if ((entry.getValue().type & DELTA) != 0
+                    && deltaDepth(type, entry.getKey()) > deltaDepth) {
+                rewritten.put(entry.getKey(), new Stored(type, read(type, entry.getKey())));
+            }
+        }
+        // The rewritten sources still own loose files that have to be deleted.
+        List<File> looseFiles = new ArrayList<>();
+        for (Stored source : sources.values()) {
+            if (source.file != null) {
+                looseFiles.add(source.file);
+            }
+        }
+        sources.putAll(rewritten);
+        File packFile = null;
+        if (!sources.isEmpty()) {
+            packDir.mkdirs();
+            String name = "pack-" + packName(sources.keySet());
+            packFile = join(packDir, name + ".pack");
+            File idxFile = join(packDir, name + ".idx");
+            File packTmp = join(packDir, name + ".pack.tmp");
+            File idxTmp = join(packDir, name + ".idx.tmp");
+            writePack(sources, packTmp, idxTmp);
+            // The objects must be safely in the new pack before their old copies go.
+            fsync(packTmp);
+            fsync(idxTmp);
+            try {
+                Files.move(packTmp.toPath(), packFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                Files.move(idxTmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        for (Pack pack : packs()) {
+            pack.close();
+            if (!pack.file.equals(packFile)) {
+                pack.file.delete();
+                pack.idxFile.delete();
+            }
+        }
+        for (File file : looseFiles) {
+            file.delete();
+        }
+        packs = null;
+        return sources.size();
+    }
+
+    /**
+     * Deletes every stored object whose id is not in keep, except those stored less
+     * than grace milliseconds ago and the delta bases of every object that stays.
+     * Loose objects are deleted in parallel, on up to threads threads. The packs are
+     * rewritten as one without the deleted objects if they hold any; with pack set,
+     * they are anyway, and every loose object that stays is moved in too, as repack
+     * does.
+     * Returns the number of objects deleted and the number of bytes they took, in
+     * their loose files or in the pack and its index.
+     */
+    public long[] prune(Set<String> keep, long grace, boolean pack, int threads) {
+        long cutoff = System.currentTimeMillis() - grace;
+        TreeMap<String, Stored> packed = new TreeMap<>();
+        TreeMap<String, Stored> loose = loose();
+        Set<String> dead = new HashSet<>();
+        for (Pack p : packs()) {
+            boolean old = grace == 0 || p.file.lastModified() < cutoff;
+            for (int i = 0; i < p.count; i++) {
+                String id = bytesToHex(p.id(i));
+                packed.put(id, packed(p, i));
+                if (old && !keep.contains(id)) {
+                    dead.add(id);
+                }
+            }
+        }
+        for (Map.Entry<String, Stored> entry : loose.entrySet()) {
+            boolean old = grace == 0 || entry.getValue().file.lastModified() < cutoff;
+            if (old && !keep.contains(entry.getKey())) {
+                dead.add(entry.getKey());
+            } else {
+                // A recent loose copy of a packed object keeps it.
+                dead.remove(entry.getKey());
+            }
+        }
+        TreeMap<String, Stored> all = new TreeMap<>(packed);
+        all.putAll(loose);
+        // An object that stays must still be readable, so its delta bases stay too.
+        for (Map.Entry<String, Stored> entry : all.entrySet()) {
+            String base = dead.contains(entry.getKey()) ? null : entry.getValue().baseId();
+            while (base != null && dead.remove(base)) {
+                base = all.containsKey(base) ? all.get(base).baseId() : null;
+            }
+        }
+        long freed = 0;
+        List<File> deadFiles = new ArrayList<>();
+        for (Map.Entry<String, Stored> entry : loose.entrySet()) {
+            if (dead.contains(entry.getKey())) {
+                deadFiles.add(entry.getValue().file);
+                freed += entry.getValue().length;
+            }
+        }
+        boolean packsChanged = pack;
+        TreeMap<String, Stored> kept = new TreeMap<>();
+        for (Map.Entry<String, Stored> entry : (pack ? all : packed).entrySet()) {
+            if (!dead.contains(entry.getKey())) {
+                kept.put(entry.getKey(), entry.getValue());
+            } else if (packed.containsKey(entry.getKey())) {
+                packsChanged = true;
+                freed += PACK_ENTRY_HEADER + packed.get(entry.getKey()).length + IDX_ENTRY;
+            }
+        }
+        parallelFor(deadFiles.size(), threads, i -> deadFiles.get(i).delete());
+        if (packsChanged) {
+            repack(kept);
+        }
+        return new long[]{dead.size(), freed};
+    }
+
+    /**
+     * Returns the sources of the loose objects, by id.
+     */
+    private TreeMap<String, Stored> loose() {
+        TreeMap<String, Stored> result = new TreeMap<>();
+        for (byte type : new byte[]{COMMIT, TREE, BLOB}) {
+            List<String> names = plainFilenamesIn(looseDir(type));
+            if (names != null) {
+                for (String name : names) {
+                    File file = join(looseDir(type), name);
+                    result.put(looseId(name),
+                            new Stored(looseType(type, name), file, null, 0, file.length()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Stored packed(Pack pack, int i) {
+        return new Stored(pack.type(i), null, pack, pack.offset(i), pack.length(i));
+    }
+
+    /**
+     * Copies the objects, id to type, from this store into target as one new pack.
+     * Their stored bytes are copied as they are, so deflated objects stay deflated
+     * and deltas stay deltas; target must have, or be given, the base of each delta.
+     * The pack only becomes visible to target once it and its index are complete.
+     */
+    public void sendPack(ObjectStore target, Map<String, Byte> objects) {
+        if (objects.isEmpty()) {
+            return;
+        }
+        TreeMap<String, Stored> sources = new TreeMap<>();
+        for (Map.Entry<String, Byte> entry : objects.entrySet()) {
+            Stored stored = locate(entry.getValue(), entry.getKey());
+            if (stored == null) {
+                throw new IllegalArgumentException("missing object " + entry.getKey());
+            }
+            sources.put(entry.getKey(), stored);
+        }
+        target.packDir.mkdirs();
+        String name = "pack-" + packName(sources.keySet());
+        File packTmp = join(target.packDir, name + ".pack.tmp");
+        File idxTmp = join(target.packDir, name + ".idx.tmp");
+        writePack(sources, packTmp, idxTmp);
+        File packFile = join(target.packDir, name + ".pack");
+        File idxFile = join(target.packDir, name + ".idx");
+        try {
+            Files.move(packTmp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(idxTmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Journal.local().wrote(packFile);
+        Journal.local().wrote(idxFile);
+        target.packs = null;
+    }
+
+    /**
+     * Writes the pack and its index for the sources, which are sorted by id.
+     */
+    private static void writePack(TreeMap<String, Stored> sources, File packTmp, File idxTmp) {
+        int count = sources.size();
+        ByteBuffer idx = ByteBuffer.allocate(IDX_HEADER + count * IDX_ENTRY);
+        idx.putInt(IDX_MAGIC).putInt(VERSION).putInt(count);
+        int[] fanout = new int[256];
+        for (String id : sources.keySet()) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int i = 0; i < 256; i++) {
+            total += fanout[i];
+            idx.putInt(total);
+        }
+        try (FileChannel out = FileChannel.open(packTmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+            header.putInt(PACK_MAGIC).putInt(VERSION).putInt(count).flip();
+            writeFully(out, header);
+            long offset = PACK_HEADER;
+            for (Map.Entry<String, Stored> entry : sources.entrySet()) {
+                Stored source = entry.getValue();
+                byte[] id = hexToBytes(entry.getKey());
+                ByteBuffer entryHeader = ByteBuffer.allocate(PACK_ENTRY_HEADER);
+                entryHeader.put(source.type).put(id).putLong(source.length).flip();
+                writeFully(out, entryHeader);
+                offset += PACK_ENTRY_HEADER;
+                source.transferTo(out);
+                idx.put(id).put(source.type).putLong(offset).putLong(source.length);
+                offset += source.length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContents(idxTmp, idx.array());
+    }
+
+    /**
+     * Writes the deflated contents of src to tar, a chunk at a time.
+     */
+    private static void deflateFile(File src, File tar, int level) {
+        Deflater deflater = new Deflater(level);
+        try (InputStream in = Files.newInputStream(src.toPath());
+             DeflaterOutputStream out = new DeflaterOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tar.toPath()), CHUNK_SIZE),
+                     deflater, CHUNK_SIZE)) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Names a pack after the SHA-1 of the ids it contains.
+     */
+    private static String packName(Iterable<String> ids) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String id : ids) {
+                md.update(hexToBytes(id));
+            }
+            return bytesToHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    private Stored findPacked(byte type, String id) {
+        if (id.length() != UID_LENGTH) {
+            return null;
+        }
+        byte[] key = hexToBytes(id);
+        for (Pack pack : packs()) {
+            int i = pack.find(key);
+            if (i >= 0 && (pack.type(i) & TYPE_MASK) == type) {
+                return new Stored(pack.type(i), null, pack, pack.offset(i), pack.length(i));
+            }
+        }
+        return null;
+    }
+
+    private List<Pack> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            packsListed = packDir.lastModified();
+            String[] names = packDir.list();
+            if (names != null) {
+                Arrays.sort(names);
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        String base = name.substring(0, name.length() - ".idx".length());
+                        File packFile = join(packDir, base + ".pack");
+                        File idxFile = join(packDir, name);
+                        if (packFile.exists() && idxFile.exists()) {
+                            packs.add(new Pack(packFile, idxFile));
+                        }
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Where the bytes of an object are: a loose file, a range of a pack, or memory.
+     * The type carries the DEFLATED flag if those bytes are compressed, and the
+     * DELTA flag if they are a base id and a delta.
+     */
+    private static class Stored {
+        private final byte type;
+        private final File file;
+        private final Pack pack;
+        private final long offset;
+        private final long length;
+        private final byte[] data;
+
+        Stored(byte type, File file, Pack pack, long offset, long length) {
+            this.type = type;
+            this.file = file;
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            data = null;
+        }
+
+        Stored(byte type, byte[] data) {
+            this.type = type;
+            file = null;
+            pack = null;
+            offset = 0;
+            length = data.length;
+            this.data = data;
+        }
+
+        /**
+         * Adds the contents to md a chunk at a time, inflating them if they are
+         * deflated. Not for deltas.
+         */
+        void digest(MessageDigest md) throws IOException {
+            if (data != null || (type & DEFLATED) != 0) {
+                try (InputStream in = open()) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        md.update(buffer, 0, n);
+                    }
+                }
+                return;
+            }
+            File source = file != null ? file : pack.file;
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                long position = file != null ? 0 : offset;
+                long end = position + length;
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(CHUNK_SIZE, end - position));
+                    int n = in.read(buffer, position);
+                    if (n < 0) {
+                        // Truncated; what was read hashes to the wrong id.
+                        break;
+                    }
+                    buffer.flip();
+                    md.update(buffer);
+                    position += n;
+                }
+            }
+        }
+
+        void transferTo(FileChannel out) throws IOException {
+            if (data != null) {
+                writeFully(out, ByteBuffer.wrap(data));
+            } else if (file != null) {
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    copyRange(in, 0, length, out);
+                }
+            } else {
+                copyRange(pack.channel(), offset, length, out);
+            }
+        }
+
+        /**
+         * Returns if the file the object was found in has been deleted since.
+         */
+        boolean gone() {
+            return data == null && !(file != null ? file : pack.file).exists();
+        }
+
+        /**
+         * Opens the contents of the object, inflating them if they are deflated.
+         */
+        InputStream open() throws IOException {
+            if ((type & DEFLATED) == 0) {
+                if (data != null) {
+                    return new ByteArrayInputStream(data);
+                }
+                if (file != null) {
+                    return Files.newInputStream(file.toPath());
+                }
+                return new ByteArrayInputStream(pack.read(offset, length));
+            }
+            InputStream raw;
+            if (file != null) {
+                raw = Files.newInputStream(file.toPath());
+            } else {
+                FileChannel channel = FileChannel.open(pack.file.toPath(), StandardOpenOption.READ);
+                raw = Channels.newInputStream(channel.position(offset));
+            }
+            return new InflaterInputStream(new BufferedInputStream(raw, CHUNK_SIZE));
+        }
+
+        byte[] readAll() {
+            try (InputStream in = open()) {
+                return in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /**
+         * Returns the id of the base of a delta, or null if the object is stored whole.
+         */
+        String baseId() {
+            if ((type & DELTA) == 0) {
+                return null;
+            }
+            try (InputStream in = open()) {
+                return bytesToHex(in.readNBytes(ID_BYTES));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A pack and its index. The index is read into memory once; the pack is read
+     * with positioned reads through a channel that stays open.
+     */
+    private static class Pack {
+        private final File file;
+        private final File idxFile;
+        private final ByteBuffer idx;
+        private final int count;
+        private FileChannel channel;
+
+        Pack(File file, File idxFile) {
+            this.file = file;
+            this.idxFile = idxFile;
+            idx = ByteBuffer.wrap(readContents(idxFile));
+            if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("bad pack index " + idxFile);
+            }
+            count = idx.getInt(8);
+        }
+
+        /**
+         * Returns the position of the id in the index, or -1.
+         */
+        int find(byte[] key) {
+            int first = key[0] & 0xff;
+            int lo = first == 0 ? 0 : idx.getInt(12 + (first - 1) * 4);
+            int hi = idx.getInt(12 + first * 4) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareId(mid, key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compareId(int i, byte[] key) {
+            int base = IDX_HEADER + i * IDX_ENTRY;
+            for (int k = 0; k < ID_BYTES; k++) {
+                int cmp = Integer.compare(idx.get(base + k) & 0xff, key[k] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        byte[] id(int i) {
+            byte[] id = new byte[ID_BYTES];
+            idx.get(IDX_HEADER + i * IDX_ENTRY, id);
+            return id;
+        }
+
+        byte type(int i) {
+            return idx.get(IDX_HEADER + i * IDX_ENTRY + ID_BYTES);
+        }
+
+        long offset(int i) {
+            return idx.getLong(IDX_HEADER + i * IDX_ENTRY + ID_BYTES + 1);
+        }
+
+        long length(int i) {
+            return idx.getLong(IDX_HEADER + i * IDX_ENTRY + ID_BYTES + 9);
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return channel;
+        }
+
+        byte[] read(long offset, long length) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            try {
+                FileChannel in = channel();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("truncated pack " + file);
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return buffer.array();
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException excp) {
+                    // Nothing left to read from it.
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * Another repository on the same file system, named in the config as
+ * remote.[name].dir, which is the path of its .gitlet directory.
+ * <p>
+ * Objects move between two repositories in one pack: the commits reachable from a
+ * branch head that the receiving side lacks are found by walking back from the
+ * head, stopping at the commits it has. A repository that has a commit has
+ * everything that commit reaches, since objects are only stored after the objects
+ * they point to. For each missing commit, its tree is walked the same way, so a
+ * subtree the receiver has is not read, and each blob it lacks is sent along with
+ * any of its delta bases it lacks. Every object is collected once in a set before
+ * any is copied, so none is sent twice. The objects' stored bytes are then copied
+ * into one new pack of the receiver, and the new commits are added to its commit
+ * index, commit graph and message index, parents first.
+ */
+public class Remote {
+
+    private final File gitletDir;
+    private final Side side;
+
+    private Remote(File gitletDir) {
+        this.gitletDir = gitletDir;
+        ObjectStore store = new ObjectStore(gitletDir);
+        side = new Side(store, new CommitIndex(gitletDir, store),
+                new CommitGraph(gitletDir, store), new MessageIndex(gitletDir, store));
+    }
+
+    /**
+     * Returns the config key holding the directory of the remote with the name.
+     */
+    public static String key(String name) {
+        return "remote." + name + ".dir";
+    }
+
+    /**
+     * Returns the remote with the name.
+     * <p>
+     * If no remote has the name, aborts, printing A remote with that name does not
+     * exist. If its directory does not exist, aborts, printing Remote directory not
+     * found.
+     */
+    public static Remote named(String name) {
+        String dir = Config.local().get(key(name));
+        if (dir == null) {
+            throw error("A remote with that name does not exist.");
+        }
+        File gitletDir = Repository.CWD.toPath().resolve(dir).toFile();
+        if (!join(gitletDir, "HEAD").isFile()) {
+            throw error("Remote directory not found.");
+        }
+        return new Remote(gitletDir);
+    }
+
+    /**
+     * Takes the lock of the remote repository until this command's lock is released,
+     * and finishes any command there that was stopped after committing its journal.
+     * A push changes the remote, so it must not run alongside a command there.
+     * <p>
+     * If another command holds the lock, aborts, printing Remote repository is in use.
+     * Waiting for it instead could deadlock with a push the other way.
+     */
+    public void lock() {
+        if (!Journal.local().lockOther(gitletDir)) {
+            throw error("Remote repository is in use.");
+        }
+        new Journal(gitletDir).recover();
+    }
+
+    /**
+     * Returns the id of the head commit of the remote's branch, or null if it has no
+     * such branch.
+     */
+    public String branchHead(String branchName) {
+        return Journal.local().readString(join(gitletDir, "refs", "heads", branchName));
+    }
+
+    /**
+     * Points the remote's branch at the commit with the id, creating the branch if
+     * needed. If it is the remote's current branch, its HEAD moves too; its working
+     * directory is left as it is. Both are written with this repository's Journal.
+     */
+    public void setBranchHead(String branchName, String id) {
+        Journal.local().write(join(gitletDir, "refs", "heads", branchName), id);
+        File serialized = join(gitletDir, "Serialized");
+        if (serialized.isFile() && branchName.equals(
+                readObject(serialized, Serialized.class).getCurBranchName())) {
+            Journal.local().write(join(gitletDir, "HEAD"), id);
+        }
+    }
+
+    /**
+     * Copies into this repository what it lacks of the remote's commit with the id.
+     */
+    public void fetch(String id) {
+        transfer(side, Side.local(), id);
+    }
+
+    /**
+     * Copies into the remote what it lacks of this repository's commit with the id.
+     */
+    public void push(String id) {
+        transfer(Side.local(), side, id);
+    }
+
+    private static void transfer(Side from, Side to, String tip) {
+        List<Commit> commits = missingCommits(from.store, to.store, tip);
+        if (commits.isEmpty()) {
+            return;
+        }
+        Map<String, Byte> objects = new HashMap<>();
+        Set<String> trees = new HashSet<>();
+        Set<String> blobs = new LinkedHashSet<>();
+        Tree fromTrees = new Tree(from.store);
+        for (Commit commit : commits) {
+            objects.put(commit.getId(), ObjectStore.COMMIT);
+            if (commit.storedTreeId() != null) {
+                fromTrees.missing(commit.storedTreeId(), to.store, trees, blobs);
+            } else {
+                blobs.addAll(commit.getIdToName().keySet());
+            }
+        }
+        for (String tree : trees) {
+            objects.put(tree, ObjectStore.TREE);
+        }
+        for (String blob : blobs) {
+            // A blob stored as a delta needs its base, and the base's base.
+            for (String id = blob; id != null && !objects.containsKey(id)
+                    && !to.store.has(ObjectStore.BLOB, id);
+                    id = from.store.deltaBase(ObjectStore.BLOB, id)) {
+                objects.put(id, ObjectStore.BLOB);
+            }
+        }
+        from.store.sendPack(to.store, objects);
+
+        // The source's commit graph has every parent before its children.
+        commits.sort((a, b) -> Integer.compare(from.graph.position(a.getId()),
+                from.graph.position(b.getId())));
+        for (Commit commit : commits) {
+            to.index.add(commit.getId());
+            to.graph.add(commit);
+            to.messages.add(commit);
+        }
+    }
+
+    /**
+     * Returns the commits reachable from the commit tip in from that to does not
+     * have.
+     */
+    private static List<Commit> missingCommits(ObjectStore from, ObjectStore to, String tip) {
+        List<Commit> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(tip);
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (!seen.add(id) || to.has(ObjectStore.COMMIT, id)) {
+                continue;
+            }
+            byte[] contents = from.read(ObjectStore.COMMIT, id);
+            if (contents == null) {
+                throw new IllegalArgumentException("missing commit " + id);
+            }
+            Commit commit = Commit.decode(contents);
+            result.add(commit);
+            for (String parent : new String[]{commit.getParent(), commit.getSecondParent()}) {
+                if (parent != null) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One end of a transfer: a repository's object store and the indexes of its
+     * commits.
+     */
+    private static class Side {
+        private final ObjectStore store;
+        private final CommitIndex index;
+        private final CommitGraph graph;
+        private final MessageIndex messages;
+
+        Side(ObjectStore store, CommitIndex index, CommitGraph graph, MessageIndex messages) {
+            this.store = store;
+            this.index = index;
+            this.graph = graph;
+            this.messages = messages;
+        }
+
+        /**
+         * The repository in the current working directory, through its shared
+         * instances, so that they see the new objects.
+         */
+        static Side local() {
+            return new Side(ObjectStore.local(), CommitIndex.local(), CommitGraph.local(),
+                    MessageIndex.local());
+        }
+    }
+}
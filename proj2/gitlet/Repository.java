@@ -7,9 +7,25 @@ package gitlet;
 //
 //import net.sf.saxon.type.StringConverter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 import static gitlet.MyUtils.*;
@@ -29,6 +45,7 @@ public class Repository {
      *      /objects
      *          /commits
      *          /blobs
+     *          /pack
      *      /stage
      *          /addition
      *          /removal
@@ -54,11 +71,12 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
 
     /**
-     * The objects folder contains commits and blobs.
+     * The objects folder contains commits, trees and blobs.
      */
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
     public static final File COMMITS_DIR = join(GITLET_DIR, "objects", "commits");
     public static final File BLOBS_DIR = join(GITLET_DIR, "objects", "blobs");
+    public static final File TREES_DIR = join(GITLET_DIR, "objects", "trees");
 
     /**
      * The refs folder includes heads and remotes.
@@ -92,7 +110,18 @@ public class Repository {
      */
     public static final File HEAD = join(GITLET_DIR, "HEAD");
 
-    private static String curBranchName = Main.serialized.getCurBranchName();
+    /**
+     * How many characters of log output are collected before they are written.
+     */
+    private static final int LOG_PAGE = 1 << 16;
+
+    /**
+     * Returns the name of the current branch. It is read from Main.serialized on
+     * each use, so that a daemon that reloads it between commands sees the new one.
+     */
+    private static String curBranchName() {
+        return Main.serialized.getCurBranchName();
+    }
 
 
     /**
@@ -111,9 +140,8 @@ public class Repository {
      */
     public static void init() throws IOException {
         if (GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists "
+            throw error("A Gitlet version-control system already exists "
                     + "in the current directory.");
-            System.exit(0);
         }
 
         //Create directories
@@ -122,6 +150,7 @@ public class Repository {
         OBJECTS_DIR.mkdir();
         COMMITS_DIR.mkdir();
         BLOBS_DIR.mkdir();
+        TREES_DIR.mkdir();
 
         REFS_DIR.mkdir();
         HEADS_DIR.mkdir();
@@ -138,11 +167,10 @@ public class Repository {
         Commit newCommit = new Commit();
         //Create branch master
         File masterPath = join(HEADS_DIR, "master");
-        curBranchName = "master";
-        Main.serialized.setCurBranchName(curBranchName);
-        writeContents(masterPath, newCommit.getId());
+        Main.serialized.setCurBranchName("master");
+        Journal.local().write(masterPath, newCommit.getId());
         //Update HEAD
-        writeContentFromFile(masterPath, HEAD);
+        Journal.local().write(HEAD, newCommit.getId());
         //Serialized Save Commit.
         newCommit.saveCommit();
     }
@@ -156,8 +184,7 @@ public class Repository {
 
     private static void notInitializedError() {
         if (!isInitialized()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
     }
 
@@ -172,17 +199,99 @@ public class Repository {
      * <p>
      * If the file does not exist, print the error message File does not exist.
      * and exit without changing anything.
+     * <p>
+     * Several paths may be given, and each may also be a directory, whose files are
+     * added recursively, or a glob pattern such as 'src/*.txt' (quoted so that the
+     * shell does not expand it). If any of them matches no file, none is added.
+     * All the files are hashed, then copied into the addition, in parallel, and the
+     * staging area is written once at the end. With --stats, prints how many files
+     * were added and how fast.
      */
-    public static void add(String fileName) {
+    public static void add(List<String> paths) {
         notInitializedError();
-        File file = join(CWD, fileName);
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+        long start = System.nanoTime();
+        boolean stats = false;
+        Set<String> fileNames = new LinkedHashSet<>();
+        for (String path : paths) {
+            if (path.equals("--stats")) {
+                stats = true;
+            } else {
+                expandPath(path, fileNames);
+            }
+        }
+        if (fileNames.isEmpty()) {
+            throw error("Incorrect operands.");
+        }
+        StatCache cache = StatCache.local();
+        Map<String, String> ids = cache.ids(fileNames);
+        Blob.addAll(ids, Commit.getHeadCommit(), cache.threads());
+        if (stats) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Added %d files in %.3f s (%.0f files/sec).%n",
+                    fileNames.size(), seconds, fileNames.size() / seconds);
+        }
+    }
+
+    /**
+     * Adds to fileNames the working files that path names: the file itself, every
+     * file under it if it is a directory, or every file matching it if it is a glob.
+     * Exits with File does not exist. if there are none.
+     */
+    private static void expandPath(String path, Set<String> fileNames) {
+        int before = fileNames.size();
+        File file = join(CWD, path);
+        if (file.isFile()) {
+            fileNames.add(workingName(file.toPath()));
+        } else if (file.isDirectory()) {
+            for (String name : workingFiles(file.toPath())) {
+                fileNames.add(name);
+            }
+        } else if (path.matches(".*[*?\\[{].*")) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+            for (String name : workingFiles(CWD.toPath())) {
+                if (matcher.matches(Paths.get(name))) {
+                    fileNames.add(name);
+                }
+            }
+        }
+        if (fileNames.size() == before) {
+            throw error("File does not exist.");
         }
+    }
+
+    /**
+     * Returns the names, relative to the working directory and separated by /, of
+     * the files under dir, leaving out .gitlet.
+     */
+    private static List<String> workingFiles(Path dir) {
+        List<String> names = new ArrayList<>();
+        // Normalized, so that paths under "." or ".." are recognized inside .gitlet too.
+        try (Stream<Path> walk = Files.walk(dir.normalize())) {
+            walk.filter(path -> !path.startsWith(GITLET_DIR.toPath()) && Files.isRegularFile(path))
+                    .forEach(path -> names.add(workingName(path)));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return names;
+    }
+
+    /**
+     * Returns the name gitlet tracks the working file at path under.
+     */
+    private static String workingName(Path path) {
+        Path relative = CWD.toPath().toAbsolutePath().normalize()
+                .relativize(path.toAbsolutePath().normalize());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Adds the file, comparing it with headCommit, which callers that add many
+     * files read once.
+     */
+    private static void add(String fileName, Commit headCommit) {
         Blob newBlob = new Blob(fileName);
         newBlob.toAdd();
-        if (Blob.existsInCurCommit(newBlob.getId())) {
+        if (headCommit.hasBlob(newBlob.getId())) {
             Blob.removeFromAdd(newBlob.getId());
         }
     }
@@ -220,17 +329,15 @@ public class Repository {
         notInitializedError();
         //Failure cases
         if (message.isEmpty()) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
         if (Blob.getAddFiles().size() + Blob.getRmFiles().size() == 0) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         }
 
         Commit newCommit = new Commit(message);
-        writeContents(HEAD, newCommit.getId());
-        writeContents(join(HEADS_DIR, curBranchName), newCommit.getId());
+        Journal.local().write(HEAD, newCommit.getId());
+        Journal.local().write(branchFile(curBranchName()), newCommit.getId());
         newCommit.saveCommit();
     }
 
@@ -241,14 +348,16 @@ public class Repository {
         notInitializedError();
         //Failure cases
         if (message.isEmpty()) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
 
         Commit newCommit = new Commit(message, secondParentId);
-        writeContents(HEAD, newCommit.getId());
-        writeContents(join(HEADS_DIR, curBranchName), newCommit.getId());
-        writeContents(join(HEADS_DIR, branName), newCommit.getId());
+        Journal.local().write(HEAD, newCommit.getId());
+        Journal.local().write(branchFile(curBranchName()), newCommit.getId());
+        if (!isRemoteBranch(branName)) {
+            // A remote-tracking branch only moves when the remote is fetched or pushed to.
+            Journal.local().write(branchFile(branName), newCommit.getId());
+        }
         newCommit.saveCommit();
     }
 
@@ -268,8 +377,7 @@ public class Repository {
         String idCom = Commit.nameToIdInMappingCurCom(fileName);
         File cwdFile = join(CWD, fileName);
         if (idAdd == null && idCom == null) {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         } else {
             if (idAdd != null) {
                 Blob.removeFromAdd(idAdd);
@@ -277,7 +385,7 @@ public class Repository {
             if (idCom != null) {
                 Blob.toRm(idCom, fileName);
                 if (cwdFile.exists()) {
-                    cwdFile.delete();
+                    deleteWorkingFile(fileName);
                 }
             }
         }
@@ -312,47 +420,151 @@ public class Repository {
      * in that order.
      * The first parent is the branch you were on when you did the merge; the second
      * is that of the merged-in branch.
+     * <p>
+     * -n count shows at most count commits, and --since date only those made at or
+     * after the date. The output is written a page at a time and stops once it has
+     * been closed, so log | head does not walk the rest of the history.
      */
-    public static void log() {
+    public static void log(List<String> options) {
         notInitializedError();
-        Commit curCommit = Commit.getHeadCommit();
-        while (curCommit != null) {
-            printLog(curCommit);
-            if (curCommit.getParent() == null) {
-                break;
-            } else {
-                curCommit = curCommit.parentCommit();
+        int limit = logLimit(options);
+        long since = logSince(options);
+        CommitGraph graph = CommitGraph.local();
+        StringBuilder page = new StringBuilder();
+        int printed = 0;
+        for (int pos = graph.position(Journal.local().readString(HEAD)); pos >= 0 && printed < limit;
+             pos = graph.parent(pos)) {
+            if (graph.time(pos) < since) {
+                continue;
+            }
+            appendLog(page, Commit.fromId(graph.id(pos)));
+            printed++;
+            if (page.length() >= LOG_PAGE && !writePage(page)) {
+                return;
             }
         }
+        writePage(page);
     }
 
     /**
-     * Like log, except displays information about all commits ever made
+     * Like log, except displays information about all commits ever made, in the
+     * order of their ids in the CommitIndex.
      */
-    public static void globalLog() {
+    public static void globalLog(List<String> options) {
         notInitializedError();
-        Commit curCommit;
-        List<String> commitNames = plainFilenamesIn(COMMITS_DIR);
-        if (commitNames != null) {
-            for (String name : commitNames) {
-                curCommit = readObject(join(COMMITS_DIR, name), Commit.class);
-                printLog(curCommit);
+        int limit = logLimit(options);
+        long since = logSince(options);
+        CommitIndex index = CommitIndex.local();
+        CommitGraph graph = CommitGraph.local();
+        StringBuilder page = new StringBuilder();
+        int printed = 0;
+        for (int i = 0; i < index.size() && printed < limit; i++) {
+            String id = index.get(i);
+            if (since != Long.MIN_VALUE) {
+                int pos = graph.position(id);
+                if (pos >= 0 && graph.time(pos) < since) {
+                    continue;
+                }
+            }
+            appendLog(page, Commit.fromId(id));
+            printed++;
+            if (page.length() >= LOG_PAGE && !writePage(page)) {
+                return;
+            }
+        }
+        writePage(page);
+    }
+
+    /**
+     * Returns the count given with -n in the options of log, or no limit.
+     */
+    private static int logLimit(List<String> options) {
+        String count = logOption(options, "-n");
+        if (count == null) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            int limit = Integer.parseInt(count);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException excp) {
+            // Reported below.
+        }
+        throw error("Incorrect operands.");
+    }
+
+    /**
+     * Returns the time in milliseconds given with --since in the options of log, as
+     * yyyy-MM-dd or yyyy-MM-dd HH:mm:ss in local time, or no bound.
+     */
+    private static long logSince(List<String> options) {
+        String date = logOption(options, "--since");
+        if (date == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            LocalDateTime time = date.length() <= "yyyy-MM-dd".length()
+                    ? LocalDate.parse(date).atStartOfDay()
+                    : LocalDateTime.parse(date.replace(' ', 'T'));
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException excp) {
+            throw error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Returns the value that follows the flag in the options, or null if the flag is
+     * not given. Every option must be a known flag followed by a value.
+     */
+    private static String logOption(List<String> options, String flag) {
+        if (options.size() % 2 != 0) {
+            throw error("Incorrect operands.");
+        }
+        String value = null;
+        for (int i = 0; i < options.size(); i += 2) {
+            String option = options.get(i);
+            if (!option.equals("-n") && !option.equals("--since")) {
+                throw error("Incorrect operands.");
+            }
+            if (option.equals(flag)) {
+                value = options.get(i + 1);
             }
         }
+        return value;
     }
 
     /**
-     * Prints the log info.
+     * Appends the log info of the commit to page.
      */
-    private static void printLog(Commit curCommit) {
-        System.out.print("===\n" + "commit " + curCommit.getId() + "\n");
+    private static void appendLog(StringBuilder page, Commit curCommit) {
+        page.append("===\n").append("commit ").append(curCommit.getId()).append('\n');
         if (curCommit.getSecondParent() != null) {
-            System.out.println("Merge: " + sevenAbb(curCommit.getParent()) + " "
-                    + sevenAbb(curCommit.getSecondParent()));
+            page.append("Merge: ").append(sevenAbb(curCommit.getParent())).append(' ')
+                    .append(sevenAbb(curCommit.getSecondParent())).append('\n');
         }
-        printDate(curCommit.getDate());
-        System.out.println(curCommit.getMessage());
-        System.out.println();
+        page.append("Date: ").append(formatDate(curCommit.getDate())).append('\n');
+        page.append(curCommit.getMessage()).append("\n\n");
+    }
+
+    /**
+     * Writes out and empties page, returning false if the output has been closed,
+     * as when it is piped to head, so that the log can stop early.
+     */
+    private static boolean writePage(StringBuilder page) {
+        System.out.print(page);
+        page.setLength(0);
+        return !System.out.checkError();
+    }
+
+    /**
+     * Writes out and empties page, as writePage does for text.
+     */
+    private static boolean writePage(ByteArrayOutputStream page) {
+        System.out.write(page.toByteArray(), 0, page.size());
+        System.out.flush();
+        page.reset();
+        return !System.out.checkError();
     }
 
     /**
@@ -365,28 +577,125 @@ public class Repository {
     /**
      * Prints out the ids of all commits that have the given commit message, one per line.
      * If no such commit exists, prints the error message Found no commit with that message.
+     * <p>
+     * With --contains text, prints the commits whose messages contain the text, and
+     * with --grep regex, those whose messages have a match of the regular expression.
+     * The MessageIndex narrows each search to the commits that may match; a search
+     * it cannot narrow checks every commit. The ids are printed in order.
      */
-    public static void find(String commitMessage) {
+    public static void find(List<String> args) {
         notInitializedError();
+        Set<String> candidates;
+        Predicate<String> matches;
+        if (args.size() == 1) {
+            String message = args.get(0);
+            candidates = MessageIndex.local().withMessage(message);
+            matches = message::equals;
+        } else if (args.size() == 2 && args.get(0).equals("--contains")) {
+            String text = args.get(1);
+            candidates = MessageIndex.local().withTokens(MessageIndex.innerTokens(text));
+            matches = message -> message.contains(text);
+        } else if (args.size() == 2 && args.get(0).equals("--grep")) {
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(args.get(1));
+            } catch (PatternSyntaxException excp) {
+                throw error("Incorrect operands.");
+            }
+            candidates = MessageIndex.local().withTokens(
+                    MessageIndex.patternTokens(args.get(1)));
+            matches = message -> pattern.matcher(message).find();
+        } else {
+            throw error("Incorrect operands.");
+        }
+        List<String> ids = candidates == null ? CommitIndex.local().ids()
+                : new ArrayList<>(candidates);
+        Collections.sort(ids);
+        StringBuilder page = new StringBuilder();
         boolean hasMessage = false;
-        Commit curCommit;
-        List<String> commitNames = plainFilenamesIn(COMMITS_DIR);
-        if (commitNames != null) {
-            for (String name : commitNames) {
-                curCommit = readObject(join(COMMITS_DIR, name), Commit.class);
-                if (curCommit.getMessage().equals(commitMessage)) {
-                    System.out.println(curCommit.getId());
-                    hasMessage = true;
+        for (String id : ids) {
+            Commit curCommit = Commit.fromId(id);
+            if (curCommit != null && matches.test(curCommit.getMessage())) {
+                page.append(id).append('\n');
+                hasMessage = true;
+                if (page.length() >= LOG_PAGE && !writePage(page)) {
+                    return;
+                }
+            }
+        }
+        if (!hasMessage) {
+            throw error("Found no commit with that message.");
+        }
+        writePage(page);
+    }
+
+    /**
+     * Prints the changes to the files as a unified diff, file by file in order of name.
+     * <p>
+     * With no operands, from the head commit to the working directory, for the files
+     * tracked in the head commit or staged for addition. With --staged, from the head
+     * commit to the staging area. With two commit ids, from the first commit to the
+     * second.
+     * <p>
+     * A file whose blob ids are equal on both sides is skipped without reading it:
+     * working files are hashed through the StatCache, and two commits are compared by
+     * Tree.diff, which skips the subtrees they share.
+     */
+    public static void diff(List<String> args) {
+        notInitializedError();
+        Commit headCommit = Commit.getHeadCommit();
+        ObjectStore store = ObjectStore.local();
+        BiFunction<String, String, byte[]> fromContents = (name, id) ->
+                store.read(ObjectStore.BLOB, id);
+        BiFunction<String, String, byte[]> toContents = fromContents;
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        if (args.isEmpty()) {
+            hashWorkingFiles(headCommit);
+            Predicate<String> sparse = sparseSet();
+            Set<String> names = new HashSet<>(headCommit.getIdToName().values());
+            names.addAll(Blob.getAddFiles().values());
+            for (String name : names) {
+                String fromId = headCommit.nameToIdInMapping(name);
+                String toId = cwdNameToId(name);
+                if (toId == null && !sparse.test(name)
+                        && !Blob.getRmFiles().containsKey(fromId)) {
+                    // Left out by the sparse checkout, as in status.
+                    continue;
+                }
+                if (!Objects.equals(fromId, toId)) {
+                    changes.put(name, new String[]{fromId, toId});
+                }
+            }
+            toContents = (name, id) -> readContents(join(CWD, name));
+        } else if (args.size() == 1 && args.get(0).equals("--staged")) {
+            for (Map.Entry<String, String> entry : Blob.getAddFiles().entrySet()) {
+                String fromId = headCommit.nameToIdInMapping(entry.getValue());
+                if (!entry.getKey().equals(fromId)) {
+                    changes.put(entry.getValue(), new String[]{fromId, entry.getKey()});
                 }
             }
-            if (!hasMessage) {
-                System.out.println("Found no commit with that message.");
-                System.exit(0);
+            for (Map.Entry<String, String> entry : Blob.getRmFiles().entrySet()) {
+                changes.put(entry.getValue(), new String[]{entry.getKey(), null});
             }
+            toContents = (name, id) -> readContents(join(Blob.ADD_DIR, id));
+        } else if (args.size() == 2) {
+            Commit from = getTarCommitFromId(args.get(0));
+            Commit to = getTarCommitFromId(args.get(1));
+            changes = Tree.local().diff(from.getTreeId(), to.getTreeId());
         } else {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String name = change.getKey();
+            String[] ids = change.getValue();
+            Diff.unified(name, ids[0] == null ? null : fromContents.apply(name, ids[0]),
+                    ids[1] == null ? null : toContents.apply(name, ids[1]), page);
+            if (page.size() >= LOG_PAGE && !writePage(page)) {
+                return;
+            }
+        }
+        writePage(page);
     }
 
     /**
@@ -397,18 +706,12 @@ public class Repository {
      */
     public static void branch(String branchName) {
         notInitializedError();
-        List<String> branches = plainFilenamesIn(HEADS_DIR);
-        if (branches != null) {
-            for (String name : branches) {
-                if (name.equals(branchName)) {
-                    System.out.println("A branch with that name already exists.");
-                    System.exit(0);
-                }
-            }
-        }
         File newBranch = join(HEADS_DIR, branchName);
+        if (Journal.local().exists(newBranch)) {
+            throw error("A branch with that name already exists.");
+        }
         Commit curCommit = Commit.getHeadCommit();
-        writeContents(newBranch, curCommit.getId());
+        Journal.local().write(newBranch, curCommit.getId());
     }
 
     /**
@@ -464,9 +767,11 @@ public class Repository {
         List<String> stagedFs = new LinkedList<>();
         List<String> removedFs = new LinkedList<>();
         List<String> modNotStagedFs = new LinkedList<>();
-        List<String> untrackedFs = new ArrayList<>(Objects.requireNonNull(plainFilenamesIn(CWD)));
+        Set<String> untrackedFs = new HashSet<>(workingFiles(CWD.toPath()));
 
         Commit curCommit = Commit.getHeadCommit();
+        hashWorkingFiles(curCommit);
+        Predicate<String> sparse = sparseSet();
 
         //Tracked in the current commit, changed in the working directory, but not staged.
         //Not staged for removal, but tracked in the current commit and deleted from
@@ -480,8 +785,8 @@ public class Repository {
                     if (Blob.getRmFiles().containsKey(entry.getKey())) {
                         //exists in the removal
                         removedFs.add(fileName);
-                    } else {
-                        //not exists in the removal
+                    } else if (sparse.test(fileName)) {
+                        //not exists in the removal, nor left out by the sparse checkout
                         modNotStagedFs.add(fileName);
                     }
                 } else if (!Blob.getAddFiles().containsKey(cwdId)) {
@@ -521,20 +826,40 @@ public class Repository {
         System.out.println("=== Modifications Not Staged For Commit ===");
         printConditionFileNames(modNotStagedFs);
         System.out.println("=== Untracked Files ===");
-        printConditionFileNames(untrackedFs);
+        printConditionFileNames(new ArrayList<>(untrackedFs));
 
     }
 
+    /**
+     * Deletes the working file with the name, and then any directories above it
+     * that it leaves empty.
+     */
+    private static void deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        file.delete();
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Brings the stat cache up to date for every file tracked by curCommit or staged
+     * for addition, hashing the changed ones in parallel, so that the cwdNameToId
+     * calls that follow are lookups.
+     */
+    private static void hashWorkingFiles(Commit curCommit) {
+        Set<String> names = new HashSet<>(curCommit.getIdToName().values());
+        names.addAll(Blob.getAddFiles().values());
+        StatCache.local().ids(names);
+    }
+
     /**
      * Gets the CWD file's id, if not exists return null.
+     * Files whose stat data are unchanged since they were last hashed are not read.
      */
     private static String cwdNameToId(String fileName) {
-        File filePath = join(CWD, fileName);
-        if (filePath.exists()) {
-            String contents = readContentsAsString(filePath);
-            return sha1(contents, fileName);
-        }
-        return null;
+        return StatCache.local().id(fileName);
     }
 
     private static void printConditionFileNames(List<String> fs) {
@@ -550,10 +875,12 @@ public class Repository {
 
     private static void printBranches() {
         System.out.println("=== Branches ===");
-        List<String> branches = plainFilenamesIn(HEADS_DIR);
-        if (branches != null) {
+        List<String> branches = Journal.local().names(HEADS_DIR);
+        if (HEADS_DIR.isDirectory()) {
+            branches.addAll(remoteBranches());
+            Collections.sort(branches);
             for (String name : branches) {
-                if (name.equals(curBranchName)) {
+                if (name.equals(curBranchName())) {
                     System.out.print("*");
                 }
                 System.out.println(name);
@@ -562,6 +889,31 @@ public class Repository {
         }
     }
 
+    /**
+     * Returns the names, [remote name]/[branch name], of the remote-tracking branches.
+     */
+    private static List<String> remoteBranches() {
+        return Journal.local().names(REMOTES_DIR);
+    }
+
+    /**
+     * Returns if the branch is a remote-tracking one, named [remote name]/[branch name].
+     */
+    private static boolean isRemoteBranch(String branchName) {
+        return branchName.contains("/");
+    }
+
+    /**
+     * Returns the file holding the head of the branch: under refs/remotes for a
+     * remote-tracking branch, and under refs/heads for any other.
+     */
+    static File branchFile(String branchName) {
+        if (isRemoteBranch(branchName)) {
+            return join(REMOTES_DIR, branchName);
+        }
+        return join(HEADS_DIR, branchName);
+    }
+
 
     /**
      * 1.java gitlet.Main checkout -- [file name]
@@ -577,12 +929,9 @@ public class Repository {
         Commit curCommit = Commit.getHeadCommit();
         String id = curCommit.nameToIdInMapping(fileName);
         if (id == null) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
-        File src = join(BLOBS_DIR, id);
-        File cwdPath = join(CWD, fileName);
-        writeContents(cwdPath, readContentsAsString(src));
+        materialize(id, fileName);
     }
     /**
      * 2.java gitlet.Main checkout [commit id] -- [file name]
@@ -598,32 +947,22 @@ public class Repository {
         Commit tarCommit = getTarCommitFromId(commitId);
         String id = tarCommit.nameToIdInMapping(fileName);
         if (id == null) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
         overwriteError(fileName);
-        File src = join(BLOBS_DIR, id);
-        File cwdPath = join(CWD, fileName);
-        writeContents(cwdPath, readContentsAsString(src));
+        materialize(id, fileName);
     }
 
+    /**
+     * Resolves an abbreviated commit id with a binary search of the commit index.
+     * Returns null if no commit starts with it.
+     */
     private static String abbToFull(String abbId) {
-        char[] abbs = abbId.toCharArray();
-        List<String> commitIds = plainFilenamesIn(COMMITS_DIR);
-        for (String fullId : commitIds) {
-            boolean flag = true;
-            char[] temps = fullId.toCharArray();
-            for (int i = 0; i < abbs.length; i++) {
-                if (abbs[i] != temps[i]) {
-                    flag = false;
-                    break;
-                }
-            }
-            if (flag) {
-                return fullId;
-            }
+        List<String> matches = CommitIndex.local().matches(abbId, 2);
+        if (matches.size() > 1) {
+            throw error("Ambiguous commit id.");
         }
-        return null;
+        return matches.isEmpty() ? null : matches.get(0);
     }
 
     /**
@@ -632,15 +971,13 @@ public class Repository {
     private static Commit getTarCommitFromId(String commitId) {
         commitId = abbToFull(commitId);
         if (commitId == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw error("No commit with that id exists.");
         }
-        File tarCommitPath = join(COMMITS_DIR, commitId);
-        if (!tarCommitPath.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+        Commit tarCommit = Commit.fromId(commitId);
+        if (tarCommit == null) {
+            throw error("No commit with that id exists.");
         }
-        return readObject(tarCommitPath, Commit.class);
+        return tarCommit;
     }
     /**
      * Failure cases:
@@ -677,48 +1014,59 @@ public class Repository {
      */
     public static void checkoutBranchName(String branchName) {
         notInitializedError();
-        List<String> branchNames = plainFilenamesIn(HEADS_DIR);
-        if (branchName.equals(curBranchName)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+        if (branchName.equals(curBranchName())) {
+            throw error("No need to checkout the current branch.");
         }
-        if (branchNames == null || !branchNames.contains(branchName)) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+        if (!Journal.local().exists(branchFile(branchName))) {
+            throw error("No such branch exists.");
         }
         Commit tarCommit = Commit.getHeadCommitOfBranch(branchName);
         if (tarCommit == null) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+            throw error("No such branch exists.");
         }
 
-        untrackedError(tarCommit);
-        clearCurTrackedCWD();
-        addTarTrackedCWD(tarCommit);
+        Predicate<String> sparse = sparseSet();
+        untrackedError(tarCommit, sparse);
+        clearCurTrackedCWD(sparse);
+        addTarTrackedCWD(tarCommit, sparse);
 
         clearStaging();
         setCurBranch(branchName);
-        writeContents(HEAD, tarCommit.getId());
+        Journal.local().write(HEAD, tarCommit.getId());
     }
 
     /**
-     * Add the files which are tracked by the target Commit to CWD
+     * Add the files which are tracked by the target Commit to CWD, if they are in
+     * the sparse set.
      */
-    private static void addTarTrackedCWD(Commit tarCommit) {
+    private static void addTarTrackedCWD(Commit tarCommit, Predicate<String> sparse) {
         for (Map.Entry<String, String> entry : tarCommit.getIdToName().entrySet()) {
-            File cwdPathCur = join(CWD, entry.getValue());
-            writeContentFromFile(join(BLOBS_DIR, entry.getKey()), cwdPathCur);
+            if (sparse.test(entry.getValue())) {
+                materialize(entry.getKey(), entry.getValue());
+            }
         }
     }
 
     /**
-     * Clear the tracked files in CWD.
+     * Puts the blob with the id into the working directory as the file with the
+     * name, and records its stat data so that it is not hashed again.
      */
-    private static void clearCurTrackedCWD() {
+    private static void materialize(String id, String fileName) {
+        File file = join(CWD, fileName);
+        file.getParentFile().mkdirs();
+        ObjectStore.local().materialize(id, file);
+        StatCache.local().record(fileName, id);
+    }
+
+    /**
+     * Clear the tracked files in CWD that are in the sparse set.
+     */
+    private static void clearCurTrackedCWD(Predicate<String> sparse) {
         Commit curCommit = Commit.getHeadCommit();
         for (Map.Entry<String, String> entry : curCommit.getIdToName().entrySet()) {
-            File cwdPathCur = join(CWD, entry.getValue());
-            cwdPathCur.delete();
+            if (sparse.test(entry.getValue())) {
+                deleteWorkingFile(entry.getValue());
+            }
         }
     }
 
@@ -726,29 +1074,27 @@ public class Repository {
      * If a working file is untracked in the current branch and would be overwritten
      * by the checkout,
      * print There is an untracked file in the way; delete it, or add and commit it first.
-     * and exit;
+     * and exit; Only the files in the sparse set are checked out, and so checked.
      */
-    private static void untrackedError(Commit tarCommit) {
-        List<String> untrackedFNs = getUntrackedFileNames(); //file name not id
+    private static void untrackedError(Commit tarCommit, Predicate<String> sparse) {
+        Set<String> untrackedFNs = getUntrackedFileNames(); //file name not id
         for (String name : tarCommit.getIdToName().values()) {
-            if (untrackedFNs.contains(name)) {
-                System.out.println("There is an untracked file in the way; delete it, "
+            if (untrackedFNs.contains(name) && sparse.test(name)) {
+                throw error("There is an untracked file in the way; delete it, "
                         + "or add and commit it first.");
-                System.exit(0);
             }
         }
     }
 
     private static void setCurBranch(String branchName) {
         //Change the current branch
-        curBranchName = branchName;
-        Main.serialized.setCurBranchName(curBranchName);
+        Main.serialized.setCurBranchName(branchName);
     }
 
     private static void clearStaging() {
         //Clear the staging area.
         clearStagingArea(ADD_DIR);
-        Blob.getAddFiles().clear();
+        Blob.clearAddFiles();
         clearStagingArea(RM_DIR);
         Blob.getRmFiles().clear();
     }
@@ -760,13 +1106,14 @@ public class Repository {
         List<String> fileIds = plainFilenamesIn(area);
         if (fileIds != null) {
             for (String id : fileIds) {
-                join(area, id).delete();
+                Journal.local().delete(join(area, id));
             }
         }
     }
-    private static List<String> getUntrackedFileNames() {
-        List<String> untrackedFs = new ArrayList<>(Objects.requireNonNull(plainFilenamesIn(CWD)));
+    private static Set<String> getUntrackedFileNames() {
+        Set<String> untrackedFs = new HashSet<>(workingFiles(CWD.toPath()));
         Commit curCommit = Commit.getHeadCommit();
+        hashWorkingFiles(curCommit);
 
         for (Map.Entry<String, String> entry : curCommit.getIdToName().entrySet()) {
             String fileName = entry.getValue();
@@ -799,16 +1146,14 @@ public class Repository {
      */
     public static void rmBranch(String tarBranchName) {
         notInitializedError();
-        File tarBranch = join(HEADS_DIR, tarBranchName);
-        if (!tarBranch.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+        File tarBranch = branchFile(tarBranchName);
+        if (!Journal.local().exists(tarBranch)) {
+            throw error("A branch with that name does not exist.");
         }
-        if (tarBranchName.equals(curBranchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+        if (tarBranchName.equals(curBranchName())) {
+            throw error("Cannot remove the current branch.");
         }
-        tarBranch.delete();
+        Journal.local().delete(tarBranch);
     }
 
     /**
@@ -833,12 +1178,131 @@ public class Repository {
     public static void reset(String commitId) {
         notInitializedError();
         Commit tarCommit = getTarCommitFromId(commitId);
-        untrackedError(tarCommit);
-        clearCurTrackedCWD();
-        addTarTrackedCWD(tarCommit);
+        Predicate<String> sparse = sparseSet();
+        untrackedError(tarCommit, sparse);
+        clearCurTrackedCWD(sparse);
+        addTarTrackedCWD(tarCommit, sparse);
         clearStaging();
-        writeContents(HEAD, tarCommit.getId());
-        writeContents(join(HEADS_DIR, curBranchName), tarCommit.getId());
+        Journal.local().write(HEAD, tarCommit.getId());
+        Journal.local().write(branchFile(curBranchName()), tarCommit.getId());
+    }
+
+    /**
+     * Restricts the files that checkout and reset put into the working directory.
+     * <p>
+     * sparse-checkout set [pattern]... checks out only the files that a pattern
+     * matches, or that are under a directory a pattern matches. The patterns are
+     * globs, as for add, such as 'src' or 'docs/*.md'. Tracked files that leave the
+     * set are deleted from the working directory, and those that enter it are
+     * checked out. sparse-checkout disable checks out every file again, and
+     * sparse-checkout list prints the patterns.
+     * <p>
+     * Failure cases:
+     * If a file leaving the set was changed in the working directory, print
+     * A file outside the sparse set has changes; commit or restore it first.
+     * If an untracked file is in the way of a file entering the set, print the
+     * same message as checkout. Both are checked before anything is changed.
+     */
+    public static void sparseCheckout(List<String> args) {
+        notInitializedError();
+        if (args.isEmpty()) {
+            throw error("Incorrect operands.");
+        }
+        ArrayList<String> patterns = null;
+        switch (args.get(0)) {
+            case "list":
+                if (args.size() != 1) {
+                    throw error("Incorrect operands.");
+                }
+                if (Main.serialized.getSparse() != null) {
+                    for (String pattern : Main.serialized.getSparse()) {
+                        System.out.println(pattern);
+                    }
+                }
+                return;
+            case "set":
+                if (args.size() == 1) {
+                    throw error("Incorrect operands.");
+                }
+                patterns = new ArrayList<>();
+                for (String pattern : args.subList(1, args.size())) {
+                    patterns.add(pattern.replaceAll("/+$", ""));
+                }
+                break;
+            case "disable":
+                if (args.size() != 1) {
+                    throw error("Incorrect operands.");
+                }
+                break;
+            default:
+                throw error("Incorrect operands.");
+        }
+        Predicate<String> before = sparseSet();
+        Predicate<String> after = sparseSet(patterns);
+        Commit curCommit = Commit.getHeadCommit();
+        hashWorkingFiles(curCommit);
+        Set<String> untrackedFNs = getUntrackedFileNames();
+        for (Map.Entry<String, String> entry : curCommit.getIdToName().entrySet()) {
+            String fileName = entry.getValue();
+            String cwdId = cwdNameToId(fileName);
+            if (before.test(fileName) && !after.test(fileName)
+                    && cwdId != null && !cwdId.equals(entry.getKey())) {
+                throw error("A file outside the sparse set has changes; "
+                        + "commit or restore it first.");
+            }
+            if (!before.test(fileName) && after.test(fileName)
+                    && untrackedFNs.contains(fileName)) {
+                throw error("There is an untracked file in the way; delete it, "
+                        + "or add and commit it first.");
+            }
+        }
+        for (Map.Entry<String, String> entry : curCommit.getIdToName().entrySet()) {
+            String fileName = entry.getValue();
+            if (before.test(fileName) && !after.test(fileName)) {
+                deleteWorkingFile(fileName);
+            } else if (!before.test(fileName) && after.test(fileName)
+                    && cwdNameToId(fileName) == null) {
+                materialize(entry.getKey(), fileName);
+            }
+        }
+        Main.serialized.setSparse(patterns);
+    }
+
+    /**
+     * Returns the test of whether a tracked file is in the sparse set, and so is
+     * put into the working directory by checkout and reset.
+     */
+    private static Predicate<String> sparseSet() {
+        return sparseSet(Main.serialized.getSparse());
+    }
+
+    /**
+     * Returns the test of whether a file is in the set the patterns select: every
+     * file if patterns is null, and otherwise a file that a pattern matches, or a
+     * directory above it does.
+     */
+    private static Predicate<String> sparseSet(List<String> patterns) {
+        if (patterns == null) {
+            return name -> true;
+        }
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String pattern : patterns) {
+            try {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            } catch (PatternSyntaxException excp) {
+                throw error("Incorrect operands.");
+            }
+        }
+        return name -> {
+            for (Path path = Paths.get(name); path != null; path = path.getParent()) {
+                for (PathMatcher matcher : matchers) {
+                    if (matcher.matches(path)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        };
     }
 
     /**
@@ -907,26 +1371,27 @@ public class Repository {
      */
     private static void nullError(Commit bran) {
         if (bran == null) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
     }
     private static void uncommittedError() {
         if (Blob.getAddFiles().size() + Blob.getRmFiles().size() > 0) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
     }
     private static void mergeSelfError() {
-        System.out.println("Cannot merge a branch with itself.");
-        System.exit(0);
+        throw error("Cannot merge a branch with itself.");
     }
     private static void ancestorError() {
-        System.out.println("Given branch is an ancestor of the current branch.");
-        System.exit(0);
+        throw error("Given branch is an ancestor of the current branch.");
     }
     private static void fastForward(String branchName) {
-        checkoutBranchName(branchName);
+        if (isRemoteBranch(branchName)) {
+            // The current branch stays current, and moves to the fetched head.
+            reset(Commit.getHeadCommitOfBranch(branchName).getId());
+        } else {
+            checkoutBranchName(branchName);
+        }
         System.out.println("Current branch fast-forwarded.");
     }
     public static void merge(String branchName) {
@@ -935,7 +1400,7 @@ public class Repository {
         Commit cur = Commit.getHeadCommit();
         Commit bran = Commit.getHeadCommitOfBranch(branchName);
         nullError(bran);
-        untrackedError(bran);
+        untrackedError(bran, name -> true);
         uncommittedError();
         if (cur.getId().equals(bran.getId())) {
             mergeSelfError();
@@ -945,16 +1410,19 @@ public class Repository {
             } else if (splitPoint.getId().equals(cur.getId())) {
                 fastForward(branchName);
             } else {
+                // Every lookup below is a hash lookup in a commit's name or id index,
+                // so the merge is linear in the number of files. The untracked check
+                // above already covers every file the merge writes.
                 boolean isConflicted = false;
                 for (Map.Entry<String, String> entry : splitPoint.getIdToName().entrySet()) {
                     String fileName = entry.getValue();
                     String fileId = entry.getKey();
                     if (cur.hasBlob(fileId)) {
                         if (bran.hasFile(fileName) && !bran.hasBlob(fileId)) {
-                            checkoutIdAndFileName(bran.getId(), fileName);
-                            add(fileName);
+                            takeGiven(bran.nameToIdInMapping(fileName), fileName);
                         } else if (!bran.hasFile(fileName)) {
-                            rm(fileName);
+                            Blob.toRm(fileId, fileName);
+                            deleteWorkingFile(fileName);
                         }
                     }
                 }
@@ -964,30 +1432,25 @@ public class Repository {
                     File cwdFile = join(CWD, fileName);
                     if (!splitPoint.hasFile(fileName)) {
                         if (!cur.hasFile(fileName)) {
-                            checkoutIdAndFileName(bran.getId(), fileName);
-                            add(fileName);
+                            takeGiven(fileId, fileName);
                         }
                     }
                     if (!splitPoint.hasFile(fileName)) {
                         if (cur.hasFile(fileName) && !cur.hasBlob(fileId)) {
-                            String branCon = getContents(fileName, bran);
-                            String curCon = getContents(fileName, cur);
-                            writeContents(cwdFile, mergeContents(curCon, branCon));
-                            add(fileName);
-                            isConflicted = true;
+                            isConflicted |= mergeFile(cwdFile, null,
+                                    cur.nameToIdInMapping(fileName), fileId);
+                            add(fileName, cur);
                         }
                     } else if (!splitPoint.hasBlob(fileId)) {
+                        String splitId = splitPoint.nameToIdInMapping(fileName);
                         if (cur.hasFile(fileName) && !cur.hasBlob(fileId)
-                                && !cur.hasBlob(splitPoint.nameToIdInMapping(fileName))) {
-                            String branCon = getContents(fileName, bran);
-                            String curCon = getContents(fileName, cur);
-                            writeContents(cwdFile, mergeContents(curCon, branCon));
-                            add(fileName);
-                            isConflicted = true;
+                                && !cur.hasBlob(splitId)) {
+                            isConflicted |= mergeFile(cwdFile, splitId,
+                                    cur.nameToIdInMapping(fileName), fileId);
+                            add(fileName, cur);
                         } else if (!cur.hasFile(fileName)) {
-                            String branCon = getContents(fileName, bran);
-                            writeContents(cwdFile, mergeContents("", branCon));
-                            add(fileName);
+                            writeConflict(cwdFile, null, fileId);
+                            add(fileName, cur);
                             isConflicted = true;
                         }
                     }
@@ -998,9 +1461,8 @@ public class Repository {
                     File cwdFile = join(CWD, fileName);
                     if (!bran.hasFile(fileName) && splitPoint.hasFile(fileName)
                             && !splitPoint.hasBlob(fileId)) {
-                        String curCon = getContents(fileName, cur);
-                        writeContents(cwdFile, mergeContents(curCon, ""));
-                        add(fileName);
+                        writeConflict(cwdFile, fileId, null);
+                        add(fileName, cur);
                         isConflicted = true;
                     }
                 }
@@ -1009,91 +1471,330 @@ public class Repository {
             }
         }
     }
+    /**
+     * Puts the given branch's version id of the file into the working directory
+     * and stages it.
+     */
+    private static void takeGiven(String id, String fileName) {
+        materialize(id, fileName);
+        Blob.stageStored(id, fileName);
+    }
+
     private static void conflictOut(boolean isConflicted) {
         if (isConflicted) {
             System.out.println("Encountered a merge conflict.");
         }
     }
     private static String comMes(String branchName) {
-        return "Merged " + branchName + " into " + curBranchName + ".";
-    }
-
-    private static String mergeContents(String curCon, String branCon) {
-        return "<<<<<<< HEAD\n" + curCon + "=======\n" + branCon + ">>>>>>>\n";
+        return "Merged " + branchName + " into " + curBranchName() + ".";
     }
 
     /**
-     * returns the content of the file tracked by the commit
+     * Merges into cwdFile, line by line with Diff3, the changes to a file from the
+     * version baseId at the split point (null if it had none) to the current version
+     * curId and to the given version branId. Returns if any of the lines conflict.
+     * Binary files, which have no lines, and files longer than core.deltaMaxSize,
+     * which are not read whole, are not merged: both versions are written as a
+     * conflict.
      */
-    private static String getContents(String fileName, Commit commit) {
-        String fileId = commit.nameToIdInMapping(fileName);
-        if (fileId != null) {
-            //file exists
-            String contents = readContentsAsString(join(BLOBS_DIR, fileId));
-            return contents;
-        } else {
-            return null;
+    private static boolean mergeFile(File cwdFile, String baseId, String curId, String branId) {
+        ObjectStore store = ObjectStore.local();
+        byte[] base = baseId == null ? new byte[0] : store.readSmall(ObjectStore.BLOB, baseId);
+        byte[] cur = base == null ? null : store.readSmall(ObjectStore.BLOB, curId);
+        byte[] bran = cur == null ? null : store.readSmall(ObjectStore.BLOB, branId);
+        if (bran == null || Diff.isBinary(base) || Diff.isBinary(cur) || Diff.isBinary(bran)) {
+            writeConflict(cwdFile, curId, branId);
+            return true;
         }
+        Diff3.Result result = Diff3.merge(base, cur, bran);
+        writeContents(cwdFile, result.getContents());
+        return result.getConflicts() > 0;
     }
 
     /**
-     * DFS one of the heads. 2.bfsSearch the other find the first
+     * Writes a conflict between the current version curId and the given version
+     * branId of a file to cwdFile. A null id stands for a deleted file.
+     * Both versions are streamed from the object store.
      */
-    private static void traverseDFS(Commit cur, HashSet<String> path) {
-        if (cur != null) {
-            path.add(cur.getId());
-            if (cur.getParent() != null) {
-                traverseDFS(getCommitOfId(cur.getParent()), path);
+    private static void writeConflict(File cwdFile, String curId, String branId) {
+        try (FileChannel out = openForWrite(cwdFile)) {
+            writeString(out, "<<<<<<< HEAD\n");
+            if (curId != null) {
+                ObjectStore.local().writeTo(ObjectStore.BLOB, curId, out);
             }
-            if (cur.getSecondParent() != null) {
-                traverseDFS(getCommitOfId(cur.getSecondParent()), path);
+            writeString(out, "=======\n");
+            if (branId != null) {
+                ObjectStore.local().writeTo(ObjectStore.BLOB, branId, out);
             }
+            writeString(out, ">>>>>>>\n");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
-    private static String bfsSearch(Commit cur, HashSet<String> path) {
-        Queue<String> queue = new LinkedList<>();
-        queue.offer(cur.getId());
-        String curId = null;
-        while (!queue.isEmpty()) {
-            curId = queue.poll();
-            if (path.contains(curId)) {
-                return curId;
-            }
-            cur = getCommitOfId(curId);
-            if (cur.getParent() != null) {
-                queue.offer(cur.getParent());
-            }
-            if (cur.getSecondParent() != null) {
-                queue.offer(cur.getSecondParent());
-            }
-        }
-        return null;
-    }
+    /**
+     * Finds the latest common ancestor of the current and the given branch
+     * with the commit graph.
+     */
     private static Commit getSplitPoint(String branchName) {
-        HashSet<String> path = new HashSet<>();
         Commit cur = Commit.getHeadCommit();
         Commit bran = Commit.getHeadCommitOfBranch(branchName);
         if (bran == null) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
-        traverseDFS(bran, path);
-        String spId = bfsSearch(cur, path);
-        return readObject(join(COMMITS_DIR, spId), Commit.class);
+        String spId = CommitGraph.local().mergeBase(cur.getId(), bran.getId());
+        return Commit.fromId(spId);
     }
 
     private static void overwriteError(String fileName) {
-        List<String> untrackedFNs = getUntrackedFileNames(); //file name not id
+        Set<String> untrackedFNs = getUntrackedFileNames(); //file name not id
         if (untrackedFNs.contains(fileName)) {
-            System.out.println("There is an untracked file in the way; "
+            throw error("There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
         }
     }
 
-    private static Commit getCommitOfId(String id) {
-        File file = join(COMMITS_DIR, id);
-        return readObject(file, Commit.class);
+    /**
+     * Saves the given login information under the given remote name. Attempts to push
+     * or pull from the given remote name will then attempt to use this .gitlet
+     * directory. The directory is written with forward slashes, which are changed to
+     * the separator of the file system.
+     * <p>
+     * If a remote with the given name already exists, print the error message: A remote
+     * with that name already exists.
+     */
+    public static void addRemote(String remoteName, String dir) {
+        notInitializedError();
+        if (remoteName.contains("/") || remoteName.isEmpty()) {
+            throw error("Incorrect operands.");
+        }
+        if (Config.local().get(Remote.key(remoteName)) != null) {
+            throw error("A remote with that name already exists.");
+        }
+        Config.local().set(Remote.key(remoteName), dir.replace("/", File.separator));
+    }
+
+    /**
+     * Removes information associated with the given remote name, along with its
+     * remote-tracking branches.
+     * <p>
+     * If a remote with the given name does not exist, print the error message: A remote
+     * with that name does not exist. If the current branch is one of its remote-tracking
+     * branches, print Cannot remove the current branch.
+     */
+    public static void rmRemote(String remoteName) {
+        notInitializedError();
+        if (remoteName.contains("/") || Config.local().get(Remote.key(remoteName)) == null) {
+            throw error("A remote with that name does not exist.");
+        }
+        if (curBranchName().startsWith(remoteName + "/")) {
+            throw error("Cannot remove the current branch.");
+        }
+        Config.local().set(Remote.key(remoteName), null);
+        File tracking = join(REMOTES_DIR, remoteName);
+        List<String> branches = plainFilenamesIn(tracking);
+        if (branches != null) {
+            for (String branch : branches) {
+                Journal.local().delete(join(tracking, branch));
+            }
+        }
+        Journal.local().delete(tracking);
+    }
+
+    /**
+     * Attempts to append the current branch's commits to the end of the given branch at
+     * the given remote, copying over only the objects the remote lacks, and then moves
+     * the remote branch to the current head. A branch the remote lacks is created.
+     * <p>
+     * If the remote branch's head is not in the history of the current local head,
+     * print the error message Please pull down remote changes before pushing.
+     */
+    public static void push(String remoteName, String remoteBranchName) {
+        notInitializedError();
+        Remote remote = Remote.named(remoteName);
+        remote.lock();
+        String headId = Commit.getHeadCommit().getId();
+        String remoteHead = remote.branchHead(remoteBranchName);
+        if (remoteHead != null && !(ObjectStore.local().has(ObjectStore.COMMIT, remoteHead)
+                && CommitGraph.local().isAncestor(remoteHead, headId))) {
+            throw error("Please pull down remote changes before pushing.");
+        }
+        remote.push(headId);
+        remote.setBranchHead(remoteBranchName, headId);
+        setRemoteBranch(remoteName, remoteBranchName, headId);
+    }
+
+    /**
+     * Brings down commits from the remote Gitlet repository into the local Gitlet
+     * repository, copying only the objects it lacks, and points the remote-tracking
+     * branch [remote name]/[remote branch name] at the remote branch's head.
+     * <p>
+     * If the remote Gitlet repository does not have the given branch name, print the
+     * error message That remote does not have that branch.
+     */
+    public static void fetch(String remoteName, String remoteBranchName) {
+        notInitializedError();
+        Remote remote = Remote.named(remoteName);
+        String remoteHead = remote.branchHead(remoteBranchName);
+        if (remoteHead == null) {
+            throw error("That remote does not have that branch.");
+        }
+        remote.fetch(remoteHead);
+        setRemoteBranch(remoteName, remoteBranchName, remoteHead);
+    }
+
+    /**
+     * Fetches branch [remote name]/[remote branch name] as for the fetch command, and
+     * then merges that fetch into the current branch.
+     */
+    public static void pull(String remoteName, String remoteBranchName) {
+        fetch(remoteName, remoteBranchName);
+        merge(remoteName + "/" + remoteBranchName);
+    }
+
+    private static void setRemoteBranch(String remoteName, String branchName, String id) {
+        Journal.local().write(join(REMOTES_DIR, remoteName, branchName), id);
+    }
+
+    /**
+     * Prints the value of the setting key, or sets it to value if that is given.
+     * For instance, config core.compression 6 deflates every object written
+     * from then on. A value out of range for an integer setting, or not a number,
+     * prints Invalid value for [key]. and sets nothing.
+     */
+    public static void config(String key, String value) {
+        notInitializedError();
+        if (value == null) {
+            String current = Config.local().get(key);
+            if (current != null) {
+                System.out.println(current);
+            }
+        } else if (!Config.valid(key, value)) {
+            throw error("Invalid value for " + key + ".");
+        } else {
+            Config.local().set(key, value);
+        }
+    }
+
+    /**
+     * Moves all loose commits and blobs, and any older packs, into one pack.
+     */
+    public static void repack() {
+        notInitializedError();
+        int count = ObjectStore.local().repack();
+        System.out.println("Packed " + count + " objects.");
+    }
+
+    /**
+     * Deletes the commits, trees and blobs that nothing reaches, and prints how many
+     * there were and how many bytes that freed. With --pack, the objects that are
+     * left are then moved into one pack, as repack does.
+     * <p>
+     * The objects marked reachable are those of HEAD, every branch and every
+     * remote-tracking branch, with the parents, trees and files of each commit, and
+     * the files of the staging area. Whatever else was stored more than gc.grace
+     * seconds ago is swept, loose objects in parallel, keeping any object the delta of
+     * a remaining one is stored against. Since commits may go, the commit index,
+     * commit graph and message index are then rebuilt.
+     */
+    public static void gc(List<String> args) {
+        notInitializedError();
+        boolean pack = args.size() == 1 && args.get(0).equals("--pack");
+        if (!args.isEmpty() && !pack) {
+            throw error("Incorrect operands.");
+        }
+        long grace = Config.local().getInt(Config.GC_GRACE, 0) * 1000L;
+        long[] pruned = ObjectStore.local().prune(reachableObjects(), grace, pack,
+                Runtime.getRuntime().availableProcessors());
+        if (pruned[0] > 0) {
+            CommitIndex.local().rebuild();
+            CommitGraph.local().rebuild();
+            MessageIndex.local().rebuild();
+        }
+        System.out.println("Removed " + pruned[0] + " unreachable objects, freeing "
+                + pruned[1] + " bytes.");
+    }
+
+    /**
+     * Checks the object store, printing each corrupt, missing or dangling object.
+     * Objects verified by an earlier check are not hashed again unless --full is given.
+     */
+    public static void fsck(List<String> args) {
+        notInitializedError();
+        boolean full = args.size() == 1 && args.get(0).equals("--full");
+        if (!args.isEmpty() && !full) {
+            throw error("Incorrect operands.");
+        }
+        List<String> roots = new ArrayList<>();
+        roots.add(Journal.local().readString(HEAD));
+        for (String branch : Journal.local().names(HEADS_DIR)) {
+            roots.add(Journal.local().readString(join(HEADS_DIR, branch)));
+        }
+        for (String branch : remoteBranches()) {
+            roots.add(Journal.local().readString(join(REMOTES_DIR, branch)));
+        }
+        Map<String, String> staged = new HashMap<>(Blob.getAddFiles());
+        staged.putAll(Blob.getRmFiles());
+        Fsck fsck = new Fsck(GITLET_DIR, ObjectStore.local(),
+                Runtime.getRuntime().availableProcessors());
+        fsck.check(roots, staged, full);
+        for (String problem : fsck.problems()) {
+            System.out.println(problem);
+        }
+        System.out.println("Checked " + fsck.checked() + " objects, hashed "
+                + fsck.hashed() + ".");
+    }
+
+    /**
+     * Returns the ids of the objects reachable from HEAD, the branches, the
+     * remote-tracking branches and the staging area. The trees of commits are walked
+     * with Tree.reachable, so the nodes they share are read once.
+     */
+    private static Set<String> reachableObjects() {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(Journal.local().readString(HEAD));
+        for (String branch : Journal.local().names(HEADS_DIR)) {
+            pending.push(Journal.local().readString(join(HEADS_DIR, branch)));
+        }
+        for (String branch : remoteBranches()) {
+            pending.push(Journal.local().readString(join(REMOTES_DIR, branch)));
+        }
+        Set<String> commits = new HashSet<>();
+        Set<String> trees = new HashSet<>();
+        Set<String> blobs = new HashSet<>(Blob.getAddFiles().keySet());
+        blobs.addAll(Blob.getRmFiles().keySet());
+        while (!pending.isEmpty()) {
+            String id = pending.pop();
+            if (!commits.add(id)) {
+                continue;
+            }
+            Commit commit = Commit.fromId(id);
+            if (commit == null) {
+                continue;
+            }
+            for (String parent : new String[]{commit.getParent(), commit.getSecondParent()}) {
+                if (parent != null) {
+                    pending.push(parent);
+                }
+            }
+            if (commit.storedTreeId() != null) {
+                Tree.local().reachable(commit.storedTreeId(), trees, blobs);
+            } else {
+                blobs.addAll(commit.getIdToName().keySet());
+            }
+        }
+        Set<String> result = new HashSet<>(commits);
+        result.addAll(trees);
+        result.addAll(blobs);
+        return result;
+    }
+
+    /**
+     * Prints how many commits this process has cached and how often the cache was
+     * used, which is of interest in a daemon that has run many commands.
+     */
+    public static void cacheStats() {
+        notInitializedError();
+        System.out.println(CommitCache.process().stats());
     }
 }
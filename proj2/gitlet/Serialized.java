@@ -1,17 +1,31 @@
 package gitlet;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 
 public class Serialized implements Serializable {
 
+    /**
+     * Pinned to the id the original class was given, so that existing repositories
+     * stay readable as this class changes.
+     */
+    private static final long serialVersionUID = 3013301721279618856L;
+
     /**
      * The files stored in the addition.
      * Id to name.
      */
     private HashMap<String, String> addFiles;
 
+    /**
+     * The files stored in the addition, name to id. Not saved; it is rebuilt from
+     * addFiles on first use and kept in step with it by the methods below.
+     */
+    private transient HashMap<String, String> addNames;
+
     /**
      * The files stored in the removal.
      * Id to name.
@@ -23,6 +37,11 @@ public class Serialized implements Serializable {
      */
     private String curBranchName;
 
+    /**
+     * The sparse checkout patterns, or null if every file is checked out.
+     */
+    private ArrayList<String> sparse;
+
     public Serialized() {
         addFiles = new HashMap<>();
         rmFiles = new HashMap<>();
@@ -33,10 +52,50 @@ public class Serialized implements Serializable {
     public void setCurBranchName(String curBranchName) {
         this.curBranchName = curBranchName;
     }
+    public ArrayList<String> getSparse() {
+        return sparse;
+    }
+    public void setSparse(ArrayList<String> sparse) {
+        this.sparse = sparse;
+    }
     public HashMap<String, String> getAddFiles() {
         return addFiles;
     }
     public HashMap<String, String> getRmFiles() {
         return rmFiles;
     }
+
+    /**
+     * Returns the id of the file with the name in the addition, or null.
+     */
+    public String addIdOf(String fileName) {
+        return addNames().get(fileName);
+    }
+
+    public void putAdd(String id, String fileName) {
+        addFiles.put(id, fileName);
+        addNames().put(fileName, id);
+    }
+
+    public void removeAdd(String id) {
+        String fileName = addFiles.remove(id);
+        if (fileName != null) {
+            addNames().remove(fileName);
+        }
+    }
+
+    public void clearAdd() {
+        addFiles.clear();
+        addNames = null;
+    }
+
+    private HashMap<String, String> addNames() {
+        if (addNames == null) {
+            addNames = new HashMap<>(addFiles.size() * 2);
+            for (Map.Entry<String, String> entry : addFiles.entrySet()) {
+                addNames.put(entry.getValue(), entry.getKey());
+            }
+        }
+        return addNames;
+    }
 }
@@ -0,0 +1,345 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * Remembers the blob id of each working file together with its size, modification
+ * time and inode, in .gitlet/index, so that a file whose stat data has not changed
+ * is not read and hashed again.
+ * <p>
+ * The file is "GSTC", version, count, then per file its name (length and UTF-8
+ * bytes), size, modification time in nanoseconds, inode (0 where the file system
+ * has none) and blob id (20 bytes).
+ * <p>
+ * A file changed twice within one tick of the file system clock keeps its
+ * modification time. So, as in git, an entry is only trusted if the file was
+ * modified before the index was last written; an entry at least as new as the
+ * index is "racily clean" and the file is hashed again. Within one run, an entry
+ * hashed or recorded by that run is trusted.
+ * <p>
+ * ids hashes the files that need it in parallel, with at most core.hashThreads
+ * files (default: one per core) being read at a time.
+ */
+public class StatCache {
+
+    private static final int MAGIC = 0x47535443;
+    private static final int VERSION = 1;
+
+    private static StatCache local;
+
+    private final File workDir;
+    private final File indexFile;
+    private final int hashThreads;
+
+    /**
+     * File name to entry, loaded on first use.
+     */
+    private HashMap<String, Entry> entries;
+
+    /**
+     * The modification time of the index file when it was loaded, in nanoseconds.
+     */
+    private long indexTime;
+
+    private boolean changed;
+
+    public StatCache(File gitletDir, File workDir) {
+        this.workDir = workDir;
+        indexFile = join(gitletDir, "index");
+        hashThreads = new Config(gitletDir).getInt(Config.HASH_THREADS,
+                Runtime.getRuntime().availableProcessors(), 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The stat cache of the repository in the current working directory.
+     */
+    public static StatCache local() {
+        if (local == null) {
+            local = new StatCache(Repository.GITLET_DIR, Repository.CWD);
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Saves the local stat cache if this run used and changed it.
+     */
+    public static void saveLocal() {
+        if (local != null) {
+            local.save();
+        }
+    }
+
+    /**
+     * Returns the blob id of the working file with the name, or null if there is no
+     * such file. The file is only hashed if its stat data differ from the cached ones.
+     */
+    public String id(String fileName) {
+        load();
+        File file = join(workDir, fileName);
+        Entry stat = stat(file);
+        if (stat == null) {
+            if (entries.remove(fileName) != null) {
+                changed = true;
+            }
+            return null;
+        }
+        Entry cached = entries.get(fileName);
+        if (trusted(cached, stat)) {
+            return cached.id;
+        }
+        stat.id = hash(fileName);
+        stat.fresh = true;
+        entries.put(fileName, stat);
+        changed = true;
+        return stat.id;
+    }
+
+    /**
+     * Returns the blob ids of the working files with the names, null for those that
+     * do not exist, like id does for each. The files that have to be hashed are
+     * hashed in parallel.
+     */
+    public Map<String, String> ids(Collection<String> fileNames) {
+        load();
+        HashMap<String, String> result = new HashMap<>(fileNames.size() * 2);
+        List<String> names = new ArrayList<>();
+        List<Entry> stats = new ArrayList<>();
+        for (String fileName : fileNames) {
+            Entry stat = stat(join(workDir, fileName));
+            Entry cached = entries.get(fileName);
+            if (stat == null) {
+                if (entries.remove(fileName) != null) {
+                    changed = true;
+                }
+                result.put(fileName, null);
+            } else if (trusted(cached, stat)) {
+                result.put(fileName, cached.id);
+            } else {
+                names.add(fileName);
+                stats.add(stat);
+            }
+        }
+        String[] hashed = hashAll(names);
+        for (int i = 0; i < hashed.length; i++) {
+            Entry stat = stats.get(i);
+            stat.id = hashed[i];
+            stat.fresh = true;
+            entries.put(names.get(i), stat);
+            result.put(names.get(i), stat.id);
+            changed = true;
+        }
+        return result;
+    }
+
+    private boolean trusted(Entry cached, Entry stat) {
+        return cached != null && cached.sameStat(stat)
+                && (cached.fresh || cached.mtime < indexTime);
+    }
+
+    /**
+     * Hashes the working files with the names on up to hashThreads threads.
+     */
+    private String[] hashAll(List<String> names) {
+        String[] ids = new String[names.size()];
+        parallelFor(ids.length, hashThreads, i -> ids[i] = hash(names.get(i)));
+        return ids;
+    }
+
+    /**
+     * Returns how many working files may be read at the same time.
+     */
+    public int threads() {
+        return hashThreads;
+    }
+
+    private String hash(String fileName) {
+        return sha1File(join(workDir, fileName), fileName);
+    }
+
+    /**
+     * Records that the working file with the name was just written with the blob id,
+     * so that it does not have to be hashed later.
+     */
+    public void record(String fileName, String id) {
+        load();
+        Entry stat = stat(join(workDir, fileName));
+        if (stat != null) {
+            stat.id = id;
+            stat.fresh = true;
+            entries.put(fileName, stat);
+            changed = true;
+        }
+    }
+
+    /**
+     * Writes the cache if it changed, to a temporary file that replaces the index.
+     * The last of two processes saving it at once wins.
+     */
+    public void save() {
+        if (!changed) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> pair : entries.entrySet()) {
+                Entry entry = pair.getValue();
+                byte[] name = pair.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+                out.write(hexToBytes(entry.id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // Commands that only read save the cache without the lock, so each writes
+        // a temporary file of its own.
+        File tmp;
+        try {
+            tmp = Files.createTempFile(indexFile.getParentFile().toPath(), "index", ".tmp")
+                    .toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContents(tmp, bytes.toByteArray());
+        replace(tmp, indexFile);
+        indexTime = modifiedTime(indexFile);
+        changed = false;
+    }
+
+    /**
+     * Starts a new run of a process that keeps this cache between commands: the
+     * entries of the last run are no longer trusted just for being hashed by it.
+     * The index is read again if another process wrote it or the last run did not
+     * save its changes.
+     */
+    public void newRun() {
+        if (entries == null) {
+            return;
+        }
+        if (changed || modifiedTime(indexFile) != indexTime) {
+            entries = null;
+            changed = false;
+            return;
+        }
+        for (Entry entry : entries.values()) {
+            entry.fresh = false;
+        }
+    }
+
+    /**
+     * Returns the modification time of the file in nanoseconds, or 0 if it does not exist.
+     */
+    private static long modifiedTime(File file) {
+        try {
+            return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            return 0;
+        }
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        if (!indexFile.exists()) {
+            return;
+        }
+        indexTime = modifiedTime(indexFile);
+        ByteBuffer in = ByteBuffer.wrap(readContents(indexFile));
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            // An unreadable cache is only a slower status; start again.
+            return;
+        }
+        int count = in.getInt();
+        byte[] id = new byte[UID_LENGTH / 2];
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+            Entry entry = new Entry(in.getLong(), in.getLong(), in.getLong());
+            in.get(id);
+            entry.id = bytesToHex(id);
+            entries.put(new String(name, StandardCharsets.UTF_8), entry);
+        }
+    }
+
+    /**
+     * Returns the stat data of the file, without an id, or null if it does not exist.
+     */
+    private static Entry stat(File file) {
+        Path path = file.toPath();
+        try {
+            Map<String, Object> unix = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+            return new Entry((Long) unix.get("size"),
+                    ((FileTime) unix.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                    (Long) unix.get("ino"));
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            // No unix attribute view here; fall back to size and time.
+            try {
+                BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Entry(basic.size(),
+                        basic.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0);
+            } catch (IOException e) {
+                return null;
+            }
+        } catch (NoSuchFileException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final long inode;
+        private String id;
+
+        /**
+         * If this run hashed or wrote the file; not saved.
+         */
+        private boolean fresh;
+
+        Entry(long size, long mtime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+}
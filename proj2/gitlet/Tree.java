@@ -0,0 +1,428 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+import static gitlet.MyUtils.*;
+
+/**
+ * The files of a commit, kept as a tree of objects so that commits share the parts
+ * of it they did not change.
+ * <p>
+ * Files are placed by the SHA-1 of their name: the node at depth d splits its files
+ * by hex digit d of that hash into up to 16 children. A node holding at most LEAF_MAX
+ * files is a leaf that lists them. The shape depends only on the set of files, so the
+ * same files always give the same tree id, and changing one file rewrites only the
+ * nodes on its path, about log16(files / LEAF_MAX) of them.
+ * <p>
+ * A node is stored as the tree object named by the SHA-1 of its bytes:
+ * kind (1 byte), number of files below it (4 bytes), then for a leaf each file,
+ * sorted by name, as blob id (20 bytes) and name (length and UTF-8 bytes), and for
+ * an inner node a 16-bit mask of the children present followed by their ids.
+ */
+public class Tree {
+
+    private static final byte LEAF = 0;
+    private static final byte INNER = 1;
+    private static final int FANOUT = 16;
+    private static final int ID_BYTES = 20;
+
+    /**
+     * The most files a leaf holds before it is split.
+     */
+    private static final int LEAF_MAX = 32;
+
+    private static Tree local;
+
+    private final ObjectStore store;
+
+    public Tree(ObjectStore store) {
+        this.store = store;
+    }
+
+    /**
+     * The trees of the repository in the current working directory.
+     */
+    public static Tree local() {
+        if (local == null) {
+            local = new Tree(ObjectStore.local());
+        }
+        return local;
+    }
+
+    /**
+     * Forgets the local instance, so that the next use reads the repository again.
+     */
+    static void resetLocal() {
+        local = null;
+    }
+
+    /**
+     * Returns the id of the tree without files, writing it if needed.
+     */
+    public String emptyTree() {
+        return write(new Node(new TreeMap<>()));
+    }
+
+    /**
+     * Writes the tree of the files in idToName, which maps blob ids to file names.
+     */
+    public String write(Map<String, String> idToName) {
+        TreeMap<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, String> entry : idToName.entrySet()) {
+            files.put(entry.getValue(), entry.getKey());
+        }
+        return write(build(files, 0));
+    }
+
+    /**
+     * Returns the id of the blob of the file with the name in the tree, or null if
+     * the tree has no such file. Reads one node per level.
+     */
+    public String lookup(String treeId, String name) {
+        String key = sha1(name);
+        Node node = read(treeId);
+        for (int depth = 0; node.children != null; depth++) {
+            String child = node.children[digit(key, depth)];
+            if (child == null) {
+                return null;
+            }
+            node = read(child);
+        }
+        return node.files.get(name);
+    }
+
+    /**
+     * Returns the blob id to file name mapping of every file in the tree.
+     */
+    public HashMap<String, String> idToName(String treeId) {
+        HashMap<String, String> result = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        pending.add(treeId);
+        while (!pending.isEmpty()) {
+            Node node = read(pending.remove(pending.size() - 1));
+            if (node.children == null) {
+                for (Map.Entry<String, String> file : node.files.entrySet()) {
+                    result.put(file.getValue(), file.getKey());
+                }
+            } else {
+                for (String child : node.children) {
+                    if (child != null) {
+                        pending.add(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the files that differ between two trees, as file name to its blob ids
+     * in the first tree and in the second, null where a tree lacks the file. Since the
+     * shape of a tree depends only on its files, subtrees with equal ids hold equal
+     * files and are skipped without being read.
+     */
+    public TreeMap<String, String[]> diff(String fromId, String toId) {
+        TreeMap<String, String[]> result = new TreeMap<>();
+        diff(fromId, toId, result);
+        return result;
+    }
+
+    private void diff(String fromId, String toId, TreeMap<String, String[]> result) {
+        if (fromId == null ? toId == null : fromId.equals(toId)) {
+            return;
+        }
+        Node from = fromId == null ? new Node(new TreeMap<>()) : read(fromId);
+        Node to = toId == null ? new Node(new TreeMap<>()) : read(toId);
+        if (from.children != null && to.children != null) {
+            for (int d = 0; d < FANOUT; d++) {
+                diff(from.children[d], to.children[d], result);
+            }
+            return;
+        }
+        TreeMap<String, String> toFiles = files(to);
+        for (Map.Entry<String, String> file : files(from).entrySet()) {
+            String toBlob = toFiles.remove(file.getKey());
+            if (!file.getValue().equals(toBlob)) {
+                result.put(file.getKey(), new String[]{file.getValue(), toBlob});
+            }
+        }
+        for (Map.Entry<String, String> file : toFiles.entrySet()) {
+            result.put(file.getKey(), new String[]{null, file.getValue()});
+        }
+    }
+
+    /**
+     * Adds to trees the ids of the nodes of the tree with treeId that target lacks,
+     * and to blobs the ids of the files below those nodes. A node that target has, or
+     * that is already in trees, is skipped with everything below it: a node is only
+     * stored after its children and its files.
+     */
+    public void missing(String treeId, ObjectStore target, Set<String> trees, Set<String> blobs) {
+        walk(treeId, id -> target.has(ObjectStore.TREE, id), trees, blobs);
+    }
+
+    /**
+     * Adds to trees the ids of the nodes of the tree with treeId, and to blobs the ids
+     * of its files. A node already in trees is skipped with everything below it, so
+     * the trees of many commits cost only the nodes they do not share.
+     */
+    public void reachable(String treeId, Set<String> trees, Set<String> blobs) {
+        walk(treeId, id -> false, trees, blobs);
+    }
+
+    private void walk(String treeId, Predicate<String> skip, Set<String> trees,
+                      Set<String> blobs) {
+        if (trees.contains(treeId) || skip.test(treeId)) {
+            return;
+        }
+        trees.add(treeId);
+        Node node = read(treeId);
+        if (node.children == null) {
+            blobs.addAll(node.files.values());
+            return;
+        }
+        for (String child : node.children) {
+            if (child != null) {
+                walk(child, skip, trees, blobs);
+            }
+        }
+    }
+
+    /**
+     * Adds to children the ids of the child nodes of the node stored as contents, and
+     * to files the files it lists, blob id to name.
+     */
+    public static void links(byte[] contents, List<String> children, Map<String, String> files) {
+        Node node = Node.decode(contents);
+        if (node.children == null) {
+            for (Map.Entry<String, String> file : node.files.entrySet()) {
+                files.put(file.getValue(), file.getKey());
+            }
+            return;
+        }
+        for (String child : node.children) {
+            if (child != null) {
+                children.add(child);
+            }
+        }
+    }
+
+    /**
+     * Returns the file name to blob id mapping of every file below node.
+     */
+    private TreeMap<String, String> files(Node node) {
+        if (node.children == null) {
+            return new TreeMap<>(node.files);
+        }
+        TreeMap<String, String> result = new TreeMap<>();
+        for (String child : node.children) {
+            if (child != null) {
+                result.putAll(files(read(child)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id of the tree that is the tree with treeId with the changes made.
+     * changes maps file names to their new blob ids, or to null for files to remove.
+     * Only the nodes on the paths of the changed files are read and written.
+     */
+    public String update(String treeId, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return treeId;
+        }
+        // Sorted by the hash of the name, so that each subtree's changes are a range.
+        TreeMap<String, Map.Entry<String, String>> byKey = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            byKey.put(sha1(change.getKey()), change);
+        }
+        return write(update(read(treeId), 0, byKey));
+    }
+
+    /**
+     * Returns the node with the changes, all of whose keys pass through node, made.
+     */
+    private Node update(Node node, int depth, TreeMap<String, Map.Entry<String, String>> changes) {
+        if (node.children == null) {
+            TreeMap<String, String> files = new TreeMap<>(node.files);
+            for (Map.Entry<String, String> change : changes.values()) {
+                if (change.getValue() == null) {
+                    files.remove(change.getKey());
+                } else {
+                    files.put(change.getKey(), change.getValue());
+                }
+            }
+            return build(files, depth);
+        }
+        String[] children = node.children.clone();
+        int total = node.total;
+        for (int d = 0; d < FANOUT; d++) {
+            String from = prefix(changes.firstKey(), depth) + Character.forDigit(d, 16);
+            TreeMap<String, Map.Entry<String, String>> part = new TreeMap<>(
+                    changes.subMap(from, true, from + Character.MAX_VALUE, true));
+            if (part.isEmpty()) {
+                continue;
+            }
+            Node child = children[d] == null ? new Node(new TreeMap<>()) : read(children[d]);
+            Node updated = update(child, depth + 1, part);
+            total += updated.total - child.total;
+            children[d] = updated.total == 0 ? null : write(updated);
+        }
+        if (total <= LEAF_MAX) {
+            // Small enough to be a leaf again; its children are all leaves.
+            TreeMap<String, String> files = new TreeMap<>();
+            for (String child : children) {
+                if (child != null) {
+                    files.putAll(read(child).files);
+                }
+            }
+            return new Node(files);
+        }
+        return new Node(children, total);
+    }
+
+    /**
+     * Builds the node for files, which are all under one node at the depth.
+     * Inner nodes below it are written; the node itself is returned unwritten.
+     */
+    private Node build(TreeMap<String, String> files, int depth) {
+        if (files.size() <= LEAF_MAX || depth == UID_LENGTH) {
+            return new Node(files);
+        }
+        List<TreeMap<String, String>> parts = new ArrayList<>();
+        for (int d = 0; d < FANOUT; d++) {
+            parts.add(new TreeMap<>());
+        }
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            parts.get(digit(sha1(file.getKey()), depth)).put(file.getKey(), file.getValue());
+        }
+        String[] children = new String[FANOUT];
+        for (int d = 0; d < FANOUT; d++) {
+            if (!parts.get(d).isEmpty()) {
+                children[d] = write(build(parts.get(d), depth + 1));
+            }
+        }
+        return new Node(children, files.size());
+    }
+
+    private static int digit(String key, int depth) {
+        return Character.digit(key.charAt(depth), 16);
+    }
+
+    private static String prefix(String key, int depth) {
+        return key.substring(0, depth);
+    }
+
+    /**
+     * Stores the node unless it is already stored, and returns its id.
+     */
+    private String write(Node node) {
+        byte[] contents = node.encode();
+        String id = sha1(contents);
+        if (!store.has(ObjectStore.TREE, id)) {
+            store.write(ObjectStore.TREE, id, contents);
+        }
+        return id;
+    }
+
+    private Node read(String id) {
+        byte[] contents = store.read(ObjectStore.TREE, id);
+        if (contents == null) {
+            throw new IllegalArgumentException("missing tree " + id);
+        }
+        return Node.decode(contents);
+    }
+
+    /**
+     * One node of a tree: a leaf with its files, name to blob id, or an inner node
+     * with the ids of its children.
+     */
+    private static class Node {
+        private final TreeMap<String, String> files;
+        private final String[] children;
+        private final int total;
+
+        Node(TreeMap<String, String> files) {
+            this.files = files;
+            children = null;
+            total = files.size();
+        }
+
+        Node(String[] children, int total) {
+            files = null;
+            this.children = children;
+            this.total = total;
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(children == null ? LEAF : INNER);
+                out.writeInt(total);
+                if (children == null) {
+                    for (Map.Entry<String, String> file : files.entrySet()) {
+                        out.write(hexToBytes(file.getValue()));
+                        byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(name.length);
+                        out.write(name);
+                    }
+                } else {
+                    int mask = 0;
+                    for (int d = 0; d < FANOUT; d++) {
+                        if (children[d] != null) {
+                            mask |= 1 << d;
+                        }
+                    }
+                    out.writeShort(mask);
+                    for (String child : children) {
+                        if (child != null) {
+                            out.write(hexToBytes(child));
+                        }
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return bytes.toByteArray();
+        }
+
+        static Node decode(byte[] contents) {
+            ByteBuffer in = ByteBuffer.wrap(contents);
+            byte kind = in.get();
+            int total = in.getInt();
+            byte[] id = new byte[ID_BYTES];
+            if (kind == LEAF) {
+                TreeMap<String, String> files = new TreeMap<>();
+                for (int i = 0; i < total; i++) {
+                    in.get(id);
+                    byte[] name = new byte[in.getInt()];
+                    in.get(name);
+                    files.put(new String(name, StandardCharsets.UTF_8), bytesToHex(id));
+                }
+                return new Node(files);
+            }
+            int mask = in.getShort() & 0xffff;
+            String[] children = new String[FANOUT];
+            for (int d = 0; d < FANOUT; d++) {
+                if ((mask & (1 << d)) != 0) {
+                    in.get(id);
+                    children[d] = bytesToHex(id);
+                }
+            }
+            return new Node(children, total);
+        }
+    }
+}
@@ -114,7 +114,9 @@ def Group(n):
 
 def contents(filename):
     try:
-        with open(filename) as inp:
+        # Bytes that are not UTF-8 map to distinct surrogates, so binary files
+        # compare exactly instead of failing to decode.
+        with open(filename, errors='surrogateescape') as inp:
             return inp.read()
     except FileNotFoundError:
         return None